@@ -0,0 +1,182 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2015 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+/**
+ * Keeps track of which IDs are needed. Uses fixed-size pages of long-arrays
+ * for storing IDs, so every ID requires 1 bit of memory in pages that 
+ * contain at least one needed ID. Pages of IDs below 2^35 are stored in an
+ * array, all other pages including negative IDs are stored in a map.
+ */
+public class BitmapIdTracker implements IdTracker {
+	private static final int PAGE_BITS = 15;
+	private static final int IDS_PER_PAGE = 1 << PAGE_BITS;
+	private static final int WORDS_PER_PAGE = IDS_PER_PAGE / 64;
+	private static final long MAX_DIRECT_PAGES = 1L << 20;
+
+	private long[][] pages = new long[0][];
+	private Map<Long, long[]> outlierPages = new HashMap<Long, long[]>();
+	private int pageCount = 0;
+	private long size = 0;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean set(long id) {
+		long[] page = getPage(id, true);
+		int word = getWordIndex(id);
+		long mask = getBitMask(id);
+		if((page[word] & mask) != 0) {
+			return false;
+		}
+		page[word] |= mask;
+		size++;
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean get(long id) {
+		long[] page = getPage(id, false);
+		if(page == null) {
+			return false;
+		}
+		return (page[getWordIndex(id)] & getBitMask(id)) != 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void unset(long id) {
+		long[] page = getPage(id, false);
+		if(page == null) {
+			return;
+		}
+		int word = getWordIndex(id);
+		long mask = getBitMask(id);
+		if((page[word] & mask) != 0) {
+			page[word] &= ~mask;
+			size--;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getMemorySize() {
+		return pages.length * 8L + pageCount * (WORDS_PER_PAGE * 8L + 16);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void forEach(LongConsumer action) {
+		for(int i = 0; i < pages.length; i++) {
+			if(pages[i] != null) {
+				forEach(i, pages[i], action);
+			}
+		}
+		for(Map.Entry<Long, long[]> entry : outlierPages.entrySet()) {
+			forEach(entry.getKey(), entry.getValue(), action);
+		}
+	}
+
+	private void forEach(long pageIndex, long[] page, LongConsumer action) {
+		long pageStart = pageIndex << PAGE_BITS;
+		for(int i = 0; i < page.length; i++) {
+			long word = page[i];
+			while(word != 0) {
+				action.accept(pageStart + i * 64 + Long.numberOfTrailingZeros(word));
+				word &= word - 1;
+			}
+		}
+	}
+
+	private long[] getPage(long id, boolean create) {
+		// Shifting keeps the sign, so negative IDs get negative page indexes
+		long pageIndex = id >> PAGE_BITS;
+		if(pageIndex >= 0 && pageIndex < MAX_DIRECT_PAGES) {
+			int index = (int)pageIndex;
+			if(index >= pages.length) {
+				if(!create) {
+					return null;
+				}
+				pages = Arrays.copyOf(pages, Math.max(index + 1, pages.length + pages.length / 2));
+			}
+			long[] page = pages[index];
+			if(page == null && create) {
+				page = new long[WORDS_PER_PAGE];
+				pages[index] = page;
+				pageCount++;
+			}
+			return page;
+		}
+
+		// Outlier IDs
+		long[] page = outlierPages.get(pageIndex);
+		if(page == null && create) {
+			page = new long[WORDS_PER_PAGE];
+			outlierPages.put(pageIndex, page);
+			pageCount++;
+		}
+		return page;
+	}
+
+	private int getWordIndex(long id) {
+		return (int)(id >>> 6) & (WORDS_PER_PAGE - 1);
+	}
+
+	private long getBitMask(long id) {
+		// Only the lowest 6 bits of the shift distance are used
+		return 1L << id;
+	}
+}
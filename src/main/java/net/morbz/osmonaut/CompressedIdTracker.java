@@ -0,0 +1,456 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Keeps track of which IDs are needed. IDs are split into chunks of 65536
+ * IDs and every chunk is stored in the most compact of three container
+ * types: a sorted array for few IDs, a bitmap for many IDs and a list of
+ * runs for consecutive IDs. This uses much less memory than a bitmap when
+ * the needed IDs are sparse.
+ *
+ * Run containers are only created by optimize(), which should be called
+ * when all IDs have been added.
+ */
+public class CompressedIdTracker implements IdTracker {
+	private static final int CHUNK_BITS = 16;
+	private static final int MAX_ARRAY_SIZE = 4096;
+
+	private long[] keys = new long[4];
+	private Container[] containers = new Container[4];
+	private int containerCount = 0;
+	private int lastIndex = -1;
+	private long size = 0;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean set(long id) {
+		long key = id >> CHUNK_BITS;
+		char low = (char)id;
+
+		// IDs are often added in ascending order, so check the last
+		// container first
+		int index;
+		if(lastIndex != -1 && keys[lastIndex] == key) {
+			index = lastIndex;
+		} else {
+			index = Arrays.binarySearch(keys, 0, containerCount, key);
+			if(index < 0) {
+				index = -index - 1;
+				insertContainer(index, key, new ArrayContainer());
+			}
+			lastIndex = index;
+		}
+
+		Container container = containers[index];
+		int oldSize = container.size();
+		containers[index] = container.set(low);
+		if(containers[index].size() == oldSize) {
+			return false;
+		}
+		size++;
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean get(long id) {
+		int index = Arrays.binarySearch(keys, 0, containerCount, id >> CHUNK_BITS);
+		if(index < 0) {
+			return false;
+		}
+		return containers[index].get((char)id);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void unset(long id) {
+		int index = Arrays.binarySearch(keys, 0, containerCount, id >> CHUNK_BITS);
+		if(index < 0) {
+			return;
+		}
+
+		Container container = containers[index];
+		int oldSize = container.size();
+		container = container.unset((char)id);
+		size += container.size() - oldSize;
+
+		// Remove container if empty
+		if(container.size() == 0) {
+			System.arraycopy(keys, index + 1, keys, index, containerCount - index - 1);
+			System.arraycopy(containers, index + 1, containers, index, containerCount - index - 1);
+			containerCount--;
+			containers[containerCount] = null;
+			lastIndex = -1;
+		} else {
+			containers[index] = container;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getMemorySize() {
+		long memorySize = keys.length * 16L;
+		for(int i = 0; i < containerCount; i++) {
+			memorySize += containers[i].getMemorySize();
+		}
+		return memorySize;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void forEach(LongConsumer action) {
+		for(int i = 0; i < containerCount; i++) {
+			containers[i].forEach(keys[i] << CHUNK_BITS, action);
+		}
+	}
+
+	/**
+	 * Converts every container into the most compact container type.
+	 */
+	public void optimize() {
+		for(int i = 0; i < containerCount; i++) {
+			containers[i] = containers[i].optimize();
+		}
+	}
+
+	private void insertContainer(int index, long key, Container container) {
+		if(containerCount == keys.length) {
+			keys = Arrays.copyOf(keys, containerCount * 2);
+			containers = Arrays.copyOf(containers, containerCount * 2);
+		}
+		System.arraycopy(keys, index, keys, index + 1, containerCount - index);
+		System.arraycopy(containers, index, containers, index + 1, containerCount - index);
+		keys[index] = key;
+		containers[index] = container;
+		containerCount++;
+	}
+
+	/**
+	 * Holds the lowest 16 bits of the IDs of one chunk. Modifications return
+	 * the container that replaces this one, which may be of another type.
+	 */
+	private static abstract class Container {
+		abstract boolean get(char low);
+
+		abstract Container set(char low);
+
+		abstract Container unset(char low);
+
+		abstract int size();
+
+		abstract long getMemorySize();
+
+		abstract void forEach(long chunkStart, LongConsumer action);
+
+		/**
+		 * @return The run container if it's smaller than this container
+		 */
+		Container optimize() {
+			// Count runs
+			final int[] runs = new int[1];
+			forEach(0, new LongConsumer() {
+				private long last = -2;
+
+				@Override
+				public void accept(long value) {
+					if(value != last + 1) {
+						runs[0]++;
+					}
+					last = value;
+				}
+			});
+
+			if(runs[0] * 4L + 16 >= getMemorySize()) {
+				return this;
+			}
+			return new RunContainer(this, runs[0]);
+		}
+	}
+
+	/**
+	 * Stores the IDs in a sorted array.
+	 */
+	private static class ArrayContainer extends Container {
+		private char[] values = new char[4];
+		private int size = 0;
+
+		@Override
+		boolean get(char low) {
+			return Arrays.binarySearch(values, 0, size, low) >= 0;
+		}
+
+		@Override
+		Container set(char low) {
+			int index = Arrays.binarySearch(values, 0, size, low);
+			if(index >= 0) {
+				return this;
+			}
+
+			// Convert to bitmap if the array gets too large
+			if(size == MAX_ARRAY_SIZE) {
+				return new BitmapContainer(this).set(low);
+			}
+
+			// Insert value
+			index = -index - 1;
+			if(size == values.length) {
+				values = Arrays.copyOf(values, Math.min(size * 2, MAX_ARRAY_SIZE));
+			}
+			System.arraycopy(values, index, values, index + 1, size - index);
+			values[index] = low;
+			size++;
+			return this;
+		}
+
+		@Override
+		Container unset(char low) {
+			int index = Arrays.binarySearch(values, 0, size, low);
+			if(index >= 0) {
+				System.arraycopy(values, index + 1, values, index, size - index - 1);
+				size--;
+			}
+			return this;
+		}
+
+		@Override
+		int size() {
+			return size;
+		}
+
+		@Override
+		long getMemorySize() {
+			return values.length * 2L + 16;
+		}
+
+		@Override
+		void forEach(long chunkStart, LongConsumer action) {
+			for(int i = 0; i < size; i++) {
+				action.accept(chunkStart + values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Stores the IDs in a bitmap.
+	 */
+	private static class BitmapContainer extends Container {
+		private long[] words = new long[(1 << CHUNK_BITS) / 64];
+		private int size = 0;
+
+		BitmapContainer(Container container) {
+			container.forEach(0, new LongConsumer() {
+				@Override
+				public void accept(long value) {
+					set((char)value);
+				}
+			});
+		}
+
+		@Override
+		boolean get(char low) {
+			return (words[low >>> 6] & (1L << low)) != 0;
+		}
+
+		@Override
+		Container set(char low) {
+			long mask = 1L << low;
+			if((words[low >>> 6] & mask) == 0) {
+				words[low >>> 6] |= mask;
+				size++;
+			}
+			return this;
+		}
+
+		@Override
+		Container unset(char low) {
+			long mask = 1L << low;
+			if((words[low >>> 6] & mask) != 0) {
+				words[low >>> 6] &= ~mask;
+				size--;
+			}
+
+			// Convert back to an array if it's smaller
+			if(size < MAX_ARRAY_SIZE / 2) {
+				final ArrayContainer array = new ArrayContainer();
+				forEach(0, new LongConsumer() {
+					@Override
+					public void accept(long value) {
+						array.set((char)value);
+					}
+				});
+				return array;
+			}
+			return this;
+		}
+
+		@Override
+		int size() {
+			return size;
+		}
+
+		@Override
+		long getMemorySize() {
+			return words.length * 8L + 16;
+		}
+
+		@Override
+		void forEach(long chunkStart, LongConsumer action) {
+			for(int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while(word != 0) {
+					action.accept(chunkStart + i * 64 + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stores the IDs as runs of consecutive IDs. The container is read-only,
+	 * modifications convert it into another container type.
+	 */
+	private static class RunContainer extends Container {
+		private char[] starts;
+		private char[] lengths;
+		private int size;
+
+		RunContainer(Container container, int runCount) {
+			starts = new char[runCount];
+			lengths = new char[runCount];
+			size = container.size();
+			container.forEach(0, new LongConsumer() {
+				private int run = -1;
+				private long last = -2;
+
+				@Override
+				public void accept(long value) {
+					if(value == last + 1) {
+						lengths[run]++;
+					} else {
+						run++;
+						starts[run] = (char)value;
+					}
+					last = value;
+				}
+			});
+		}
+
+		@Override
+		boolean get(char low) {
+			int index = Arrays.binarySearch(starts, low);
+			if(index >= 0) {
+				return true;
+			}
+
+			// Check the run that starts before the value
+			index = -index - 2;
+			return index >= 0 && low - starts[index] <= lengths[index];
+		}
+
+		@Override
+		Container set(char low) {
+			if(get(low)) {
+				return this;
+			}
+			return toModifiable().set(low);
+		}
+
+		@Override
+		Container unset(char low) {
+			if(!get(low)) {
+				return this;
+			}
+			return toModifiable().unset(low);
+		}
+
+		private Container toModifiable() {
+			if(size > MAX_ARRAY_SIZE) {
+				return new BitmapContainer(this);
+			}
+			final ArrayContainer array = new ArrayContainer();
+			forEach(0, new LongConsumer() {
+				@Override
+				public void accept(long value) {
+					array.set((char)value);
+				}
+			});
+			return array;
+		}
+
+		@Override
+		int size() {
+			return size;
+		}
+
+		@Override
+		long getMemorySize() {
+			return starts.length * 4L + 16;
+		}
+
+		@Override
+		void forEach(long chunkStart, LongConsumer action) {
+			for(int i = 0; i < starts.length; i++) {
+				for(int j = 0; j <= lengths[i]; j++) {
+					action.accept(chunkStart + starts[i] + j);
+				}
+			}
+		}
+
+		@Override
+		Container optimize() {
+			return this;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+/**
+ * Keeps track of which IDs are needed and can be used by multiple threads at
+ * the same time without locking. The layout is the same as in
+ * BitmapIdTracker, but the bits are changed with compare-and-set operations
+ * and the page directory is allocated in full up front, so that it never has
+ * to grow.
+ */
+public class ConcurrentIdTracker implements IdTracker {
+	private static final int PAGE_BITS = 15;
+	private static final int IDS_PER_PAGE = 1 << PAGE_BITS;
+	private static final int WORDS_PER_PAGE = IDS_PER_PAGE / 64;
+	private static final int MAX_DIRECT_PAGES = 1 << 20;
+
+	private AtomicReferenceArray<AtomicLongArray> pages = new AtomicReferenceArray<AtomicLongArray>(MAX_DIRECT_PAGES);
+	private Map<Long, AtomicLongArray> outlierPages = new ConcurrentHashMap<Long, AtomicLongArray>();
+	private LongAdder pageCount = new LongAdder();
+	private LongAdder size = new LongAdder();
+
+	private Function<Long, AtomicLongArray> pageFactory = new Function<Long, AtomicLongArray>() {
+		@Override
+		public AtomicLongArray apply(Long pageIndex) {
+			pageCount.increment();
+			return new AtomicLongArray(WORDS_PER_PAGE);
+		}
+	};
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean set(long id) {
+		AtomicLongArray page = getPage(id, true);
+		int word = getWordIndex(id);
+		long mask = getBitMask(id);
+		while(true) {
+			long value = page.get(word);
+			if((value & mask) != 0) {
+				return false;
+			}
+			if(page.compareAndSet(word, value, value | mask)) {
+				size.increment();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean get(long id) {
+		AtomicLongArray page = getPage(id, false);
+		if(page == null) {
+			return false;
+		}
+		return (page.get(getWordIndex(id)) & getBitMask(id)) != 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void unset(long id) {
+		AtomicLongArray page = getPage(id, false);
+		if(page == null) {
+			return;
+		}
+		int word = getWordIndex(id);
+		long mask = getBitMask(id);
+		while(true) {
+			long value = page.get(word);
+			if((value & mask) == 0) {
+				return;
+			}
+			if(page.compareAndSet(word, value, value & ~mask)) {
+				size.decrement();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long size() {
+		return size.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getMemorySize() {
+		return MAX_DIRECT_PAGES * 8L + pageCount.sum() * (WORDS_PER_PAGE * 8L + 16);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void forEach(LongConsumer action) {
+		for(int i = 0; i < MAX_DIRECT_PAGES; i++) {
+			AtomicLongArray page = pages.get(i);
+			if(page != null) {
+				forEach(i, page, action);
+			}
+		}
+		for(Map.Entry<Long, AtomicLongArray> entry : outlierPages.entrySet()) {
+			forEach(entry.getKey(), entry.getValue(), action);
+		}
+	}
+
+	private void forEach(long pageIndex, AtomicLongArray page, LongConsumer action) {
+		long pageStart = pageIndex << PAGE_BITS;
+		for(int i = 0; i < WORDS_PER_PAGE; i++) {
+			long word = page.get(i);
+			while(word != 0) {
+				action.accept(pageStart + i * 64 + Long.numberOfTrailingZeros(word));
+				word &= word - 1;
+			}
+		}
+	}
+
+	private AtomicLongArray getPage(long id, boolean create) {
+		// Shifting keeps the sign, so negative IDs get negative page indexes
+		long pageIndex = id >> PAGE_BITS;
+		if(pageIndex >= 0 && pageIndex < MAX_DIRECT_PAGES) {
+			int index = (int)pageIndex;
+			AtomicLongArray page = pages.get(index);
+			if(page == null && create) {
+				// Only one of the competing threads installs its page
+				AtomicLongArray newPage = new AtomicLongArray(WORDS_PER_PAGE);
+				if(pages.compareAndSet(index, null, newPage)) {
+					pageCount.increment();
+					page = newPage;
+				} else {
+					page = pages.get(index);
+				}
+			}
+			return page;
+		}
+
+		// Outlier IDs
+		if(create) {
+			return outlierPages.computeIfAbsent(pageIndex, pageFactory);
+		}
+		return outlierPages.get(pageIndex);
+	}
+
+	private int getWordIndex(long id) {
+		return (int)(id >>> 6) & (WORDS_PER_PAGE - 1);
+	}
+
+	private long getBitMask(long id) {
+		// Only the lowest 6 bits of the shift distance are used
+		return 1L << id;
+	}
+}
@@ -24,10 +24,14 @@ package net.morbz.osmonaut;
 * SOFTWARE.
 */
 
+import java.io.IOException;
 import java.util.Map;
 
 import org.mapdb.DB;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
 import org.mapdb.Serializer;
+import org.mapdb.serializer.GroupSerializerObjectArray;
 
 import net.morbz.osmonaut.osm.Entity;
 
@@ -48,6 +52,7 @@ public class DiskEntityMap<T extends Entity> implements EntityMap<T> {
 	public DiskEntityMap(DB db, String name) {
 		entities = (Map<Long, T>)db.treeMap(name)
 				.keySerializer(Serializer.LONG)
+				.valueSerializer(new EntitySerializer<T>())
 				.create();
 	}
 
@@ -67,4 +72,32 @@ public class DiskEntityMap<T extends Entity> implements EntityMap<T> {
 		return entities.get(id);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void remove(long id) {
+		entities.remove(id);
+	}
+
+	/**
+	 * Serializes entities with EntityCodec, which is much faster and more
+	 * compact than Java serialization.
+	 */
+	private static class EntitySerializer<T extends Entity> extends GroupSerializerObjectArray<T> {
+		@Override
+		public void serialize(DataOutput2 out, T entity) throws IOException {
+			byte[] bytes = EntityCodec.encode(entity);
+			out.packInt(bytes.length);
+			out.write(bytes);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public T deserialize(DataInput2 in, int available) throws IOException {
+			byte[] bytes = new byte[in.unpackInt()];
+			in.readFully(bytes);
+			return (T)EntityCodec.decode(bytes);
+		}
+	}
 }
@@ -0,0 +1,134 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.morbz.osmonaut.osm.Entity;
+import net.morbz.osmonaut.osm.Relation;
+import net.morbz.osmonaut.osm.Way;
+
+/**
+ * Keeps the entities of a discovery pass in the order they were found, so
+ * that the assembly pass can reuse them instead of reading the file again.
+ * The buffer gives up as soon as the estimated size of the entities would
+ * exceed its capacity.
+ */
+class EntityBuffer<T extends Entity> {
+	// Rough size of an entity with its tags and list entry on the heap,
+	// without node IDs or members
+	private static final int BYTES_PER_ENTITY = 96;
+
+	// Rough size of a tag with its value string
+	private static final int BYTES_PER_TAG = 48;
+
+	// Size of a node ID of a way and of a member ID, type and role of a
+	// relation
+	private static final int BYTES_PER_NODE_ID = 8;
+	private static final int BYTES_PER_MEMBER = 13;
+
+	private final long capacity;
+	private List<T> entities = new ArrayList<T>();
+	private long memorySize = 0;
+
+	/**
+	 * @param capacity
+	 *            The maximum estimated size of the entities in bytes
+	 */
+	public EntityBuffer(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param entity
+	 *            The entity to keep
+	 */
+	public void add(T entity) {
+		if (entities == null) {
+			return;
+		}
+		long size = getMemorySize(entity);
+		if (memorySize + size > capacity) {
+			// Too many entities, they have to be read again
+			entities = null;
+			memorySize = 0;
+			return;
+		}
+		entities.add(entity);
+		memorySize += size;
+	}
+
+	/**
+	 * @return True if all entities have been kept
+	 */
+	public boolean isComplete() {
+		return entities != null;
+	}
+
+	/**
+	 * @return The number of kept entities
+	 */
+	public int size() {
+		return entities == null ? 0 : entities.size();
+	}
+
+	/**
+	 * @return The estimated size of the kept entities in bytes
+	 */
+	public long getMemorySize() {
+		return memorySize;
+	}
+
+	/**
+	 * Returns the entities and clears the buffer.
+	 *
+	 * @return The entities or null if the buffer isn't complete
+	 */
+	public List<T> takeEntities() {
+		List<T> result = entities;
+		entities = null;
+		memorySize = 0;
+		return result;
+	}
+
+	/**
+	 * Estimates the heap size of a discovered entity. Ways are counted with
+	 * their node IDs and relations with their unresolved members.
+	 *
+	 * @param entity
+	 *            The entity
+	 * @return The estimated size in bytes
+	 */
+	static long getMemorySize(Entity entity) {
+		long size = BYTES_PER_ENTITY + (long)entity.getTags().size() * BYTES_PER_TAG;
+		if (entity instanceof Way) {
+			size += (long)((Way)entity).getNodeIds().length * BYTES_PER_NODE_ID;
+		} else if (entity instanceof Relation) {
+			size += (long)((Relation)entity).getMemberCount() * BYTES_PER_MEMBER;
+		}
+		return size;
+	}
+}
@@ -24,6 +24,13 @@ package net.morbz.osmonaut;
 * SOFTWARE.
 */
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.LongConsumer;
+
 import org.mapdb.DB;
 
 import net.morbz.osmonaut.osm.Entity;
@@ -35,9 +42,28 @@ import net.morbz.osmonaut.osm.Entity;
  * @author MorbZ
  */
 public class EntityCache<T extends Entity> {
-	private IdTracker idTracker = new IdTracker();
+	private static final BiFunction<Integer, Integer, Integer> sum = new BiFunction<Integer, Integer, Integer>() {
+		@Override
+		public Integer apply(Integer a, Integer b) {
+			return a + b;
+		}
+	};
+
+	private IdTracker idTracker = new BitmapIdTracker();
 	private EntityMap<T> entityMap;
 
+	// The number of references beyond the first one, only for IDs that are
+	// referenced more than once
+	private Map<Long, Integer> extraReferences;
+
+	/**
+	 * Creates a cache without an entity map. The map has to be set before
+	 * entities are added.
+	 */
+	public EntityCache() {
+
+	}
+
 	/**
 	 * @param entityMap The map to store the full entities
 	 */
@@ -64,13 +90,51 @@ public class EntityCache<T extends Entity> {
 	}
 
 	/**
-	 * Adds the ID to the list of needed IDs.
+	 * Adds the ID to the list of needed IDs. With reference counting every
+	 * call counts as one reference. Can be called by multiple threads if the
+	 * ID tracker supports it.
 	 * 
 	 * @param id
 	 *            The needed ID
 	 */
 	public void addNeeded(long id) {
-		idTracker.set(id);
+		if (!idTracker.set(id) && extraReferences != null) {
+			extraReferences.merge(id, 1, sum);
+		}
+	}
+
+	/**
+	 * Enables reference counting. Entities are removed from the cache when
+	 * they have been released as often as they have been added as needed.
+	 * Must be called before any IDs are added.
+	 */
+	public void enableReferenceCounting() {
+		extraReferences = new ConcurrentHashMap<Long, Integer>();
+	}
+
+	/**
+	 * Releases one reference to the entity. The entity is removed when the
+	 * last reference is released. Does nothing without reference counting.
+	 * 
+	 * @param id
+	 *            The ID of the entity
+	 * @return True if the entity has been removed
+	 */
+	public boolean release(long id) {
+		if (extraReferences == null) {
+			return false;
+		}
+		Integer references = extraReferences.get(id);
+		if (references == null) {
+			entityMap.remove(id);
+			return true;
+		}
+		if (references == 1) {
+			extraReferences.remove(id);
+		} else {
+			extraReferences.put(id, references - 1);
+		}
+		return false;
 	}
 
 	/**
@@ -83,16 +147,13 @@ public class EntityCache<T extends Entity> {
 	}
 
 	/**
-	 * Adds a full entity. This will drop the needed ID.
+	 * Adds a full entity. The needed ID is kept, so that the needed IDs can be
+	 * read by the decoder threads while entities are being added.
 	 * 
 	 * @param entity
 	 *            The full entity
 	 */
 	public void addEntity(T entity) {
-		// Remove from needed
-		idTracker.unset(entity.getId());
-
-		// Add to entities
 		entityMap.add(entity);
 	}
 
@@ -105,6 +166,82 @@ public class EntityCache<T extends Entity> {
 		return entityMap.get(id);
 	}
 
+	/**
+	 * @return The IDs of the needed entities
+	 */
+	public IdTracker getIdTracker() {
+		return idTracker;
+	}
+
+	/**
+	 * Replaces the ID tracker. Must be called before any IDs are added.
+	 * 
+	 * @param idTracker
+	 *            The empty ID tracker
+	 */
+	public void setIdTracker(IdTracker idTracker) {
+		this.idTracker = idTracker;
+	}
+
+	/**
+	 * Replaces the map that stores the full entities. Must be called before
+	 * any entities are added.
+	 * 
+	 * @param entityMap
+	 *            The empty map
+	 */
+	public void setEntityMap(EntityMap<T> entityMap) {
+		this.entityMap = entityMap;
+	}
+
+	/**
+	 * Compacts the needed IDs when all of them have been added. Depending on
+	 * the type, the IDs are moved into a compressed tracker.
+	 * 
+	 * @param type
+	 *            The type of ID tracker to use. The automatic type only 
+	 *            compresses sparse IDs.
+	 * @return true if the needed IDs are stored compressed
+	 */
+	public boolean compactIdTracker(IdTrackerType type) {
+		if (type == IdTrackerType.BITMAP) {
+			return false;
+		}
+		if (!(idTracker instanceof CompressedIdTracker)) {
+			// Compressed IDs take about 2 bytes per ID when they are sparse.
+			// Only compress automatically if that saves a lot of memory, as
+			// lookups in bitmaps are faster.
+			if (type == IdTrackerType.AUTOMATIC && idTracker.size() * 2 * 4 >= idTracker.getMemorySize()) {
+				return false;
+			}
+			final CompressedIdTracker compressedTracker = new CompressedIdTracker();
+			idTracker.forEach(new LongConsumer() {
+				@Override
+				public void accept(long id) {
+					compressedTracker.set(id);
+				}
+			});
+			idTracker = compressedTracker;
+		}
+		((CompressedIdTracker)idTracker).optimize();
+		return true;
+	}
+
+	/**
+	 * Closes the entity map if it holds files. The cache can't be used
+	 * afterwards.
+	 */
+	public void close() {
+		if (entityMap instanceof Closeable) {
+			try {
+				((Closeable)entityMap).close();
+			} catch (IOException e) {
+				// Nothing left to do
+			}
+		}
+		entityMap = null;
+	}
+
 	/**
 	 * @return true if there is at least one needed entity
 	 */
@@ -0,0 +1,313 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.morbz.osmonaut.osm.Entity;
+import net.morbz.osmonaut.osm.EntityType;
+import net.morbz.osmonaut.osm.LatLon;
+import net.morbz.osmonaut.osm.Node;
+import net.morbz.osmonaut.osm.Relation;
+import net.morbz.osmonaut.osm.RelationMember;
+import net.morbz.osmonaut.osm.Tags;
+import net.morbz.osmonaut.osm.Way;
+import net.morbz.osmonaut.util.VarIntReader;
+import net.morbz.osmonaut.util.VarIntWriter;
+
+/**
+ * Encodes entities into a compact binary format for the entity caches. IDs
+ * are written as variable length integers, the IDs and coordinates of
+ * consecutive nodes and members are delta encoded. Tag keys and member roles
+ * are written as the IDs of the global dictionaries, which are only valid in
+ * the current process, so the format must not be used for persistent files.
+ */
+public class EntityCodec {
+	private static final EntityType[] ENTITY_TYPES = EntityType.values();
+
+	// Flags of the entity header, the lowest two bits hold the entity type
+	private static final int TYPE_MASK = 3;
+	private static final int RESOLVED = 1 << 2;
+	private static final int INCOMPLETE = 1 << 3;
+	private static final int LOCATION_FIXED = 1 << 4;
+	private static final int LOCATION_DOUBLE = 1 << 5;
+
+	/**
+	 * Private constructor, only static functions.
+	 */
+	private EntityCodec() {
+
+	}
+
+	/**
+	 * Encodes an entity.
+	 * 
+	 * @param entity The entity
+	 * @return The encoded entity
+	 */
+	public static byte[] encode(Entity entity) {
+		VarIntWriter writer = new VarIntWriter();
+		write(entity, writer);
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Decodes an entity.
+	 * 
+	 * @param bytes The entity as returned by encode()
+	 * @return The entity
+	 */
+	public static Entity decode(byte[] bytes) {
+		return read(new VarIntReader(bytes, 0));
+	}
+
+	/**
+	 * Writes an entity.
+	 * 
+	 * @param entity The entity
+	 * @param writer The writer to write to
+	 */
+	public static void write(Entity entity, VarIntWriter writer) {
+		write(entity, writer, new long[3]);
+	}
+
+	/**
+	 * Reads an entity.
+	 * 
+	 * @param reader The reader that is positioned at the entity
+	 * @return The entity
+	 */
+	public static Entity read(VarIntReader reader) {
+		return read(reader, new long[3]);
+	}
+
+	/**
+	 * @param last The ID, latitude and longitude of the previous node, which
+	 * the values of this entity are encoded relative to
+	 */
+	private static void write(Entity entity, VarIntWriter writer, long[] last) {
+		switch(entity.getEntityType()) {
+		case NODE:
+			writeNode((Node)entity, writer, last);
+			break;
+		case WAY:
+			writeWay((Way)entity, writer, last[0]);
+			break;
+		case RELATION:
+			writeRelation((Relation)entity, writer, last[0]);
+			break;
+		}
+	}
+
+	private static Entity read(VarIntReader reader, long[] last) {
+		int header = reader.readVarInt();
+		switch(ENTITY_TYPES[header & TYPE_MASK]) {
+		case NODE:
+			return readNode(header, reader, last);
+		case WAY:
+			return readWay(header, reader, last[0]);
+		default:
+			return readRelation(header, reader, last[0]);
+		}
+	}
+
+	private static void writeNode(Node node, VarIntWriter writer, long[] last) {
+		// Choose the location encoding
+		LatLon latlon = node.getLatlon();
+		long location = NodeLocationMap.EMPTY;
+		int header = EntityType.NODE.ordinal();
+		if(latlon != null) {
+			location = NodeLocationMap.encode(latlon);
+			header |= location == NodeLocationMap.EMPTY ? LOCATION_DOUBLE : LOCATION_FIXED;
+		}
+		writer.writeVarLong(header);
+		writer.writeSignedVarLong(node.getId() - last[0]);
+		last[0] = node.getId();
+
+		// Consecutive nodes of a way are close to each other, so the
+		// differences of their coordinates are small
+		if((header & LOCATION_FIXED) != 0) {
+			long lat = location >> 32;
+			long lon = (int)location;
+			writer.writeSignedVarLong(lat - last[1]);
+			writer.writeSignedVarLong(lon - last[2]);
+			last[1] = lat;
+			last[2] = lon;
+		} else if((header & LOCATION_DOUBLE) != 0) {
+			writer.writeDouble(latlon.getLat());
+			writer.writeDouble(latlon.getLon());
+		}
+		writeTags(node.getTags(), writer);
+	}
+
+	private static Node readNode(int header, VarIntReader reader, long[] last) {
+		long id = last[0] + reader.readSignedVarLong();
+		last[0] = id;
+
+		LatLon latlon = null;
+		if((header & LOCATION_FIXED) != 0) {
+			last[1] += reader.readSignedVarLong();
+			last[2] += reader.readSignedVarLong();
+			latlon = NodeLocationMap.decode((last[1] << 32) | (last[2] & 0xFFFFFFFFL));
+		} else if((header & LOCATION_DOUBLE) != 0) {
+			latlon = new LatLon(reader.readDouble(), reader.readDouble());
+		}
+		return new Node(id, readTags(reader), latlon);
+	}
+
+	private static void writeWay(Way way, VarIntWriter writer, long lastId) {
+		int header = EntityType.WAY.ordinal();
+		if(way.isResolved()) {
+			header |= RESOLVED;
+		}
+		writer.writeVarLong(header);
+		writer.writeSignedVarLong(way.getId() - lastId);
+		writeTags(way.getTags(), writer);
+
+		if(way.isResolved()) {
+			List<Node> nodes = way.getNodes();
+			writer.writeVarLong(nodes.size());
+			long[] last = new long[3];
+			for(Node node : nodes) {
+				writeNode(node, writer, last);
+			}
+		} else {
+			long[] nodeIds = way.getNodeIds();
+			writer.writeVarLong(nodeIds.length);
+			long last = 0;
+			for(long nodeId : nodeIds) {
+				writer.writeSignedVarLong(nodeId - last);
+				last = nodeId;
+			}
+		}
+	}
+
+	private static Way readWay(int header, VarIntReader reader, long lastId) {
+		long id = lastId + reader.readSignedVarLong();
+		Tags tags = readTags(reader);
+
+		int nodeCount = reader.readVarInt();
+		if((header & RESOLVED) != 0) {
+			List<Node> nodes = new ArrayList<Node>(nodeCount);
+			long[] last = new long[3];
+			for(int i = 0; i < nodeCount; i++) {
+				nodes.add(readNode(reader.readVarInt(), reader, last));
+			}
+			return new Way(id, tags, nodes);
+		}
+
+		long[] nodeIds = new long[nodeCount];
+		long last = 0;
+		for(int i = 0; i < nodeCount; i++) {
+			last += reader.readSignedVarLong();
+			nodeIds[i] = last;
+		}
+		return new Way(id, tags, nodeIds);
+	}
+
+	private static void writeRelation(Relation relation, VarIntWriter writer, long lastId) {
+		int header = EntityType.RELATION.ordinal();
+		if(relation.isResolved()) {
+			header |= RESOLVED;
+		}
+		if(relation.isIncomplete()) {
+			header |= INCOMPLETE;
+		}
+		writer.writeVarLong(header);
+		writer.writeSignedVarLong(relation.getId() - lastId);
+		writeTags(relation.getTags(), writer);
+
+		if(relation.isResolved()) {
+			// Members are written as complete entities
+			List<RelationMember> members = relation.getMembers();
+			writer.writeVarLong(members.size());
+			long[] last = new long[3];
+			for(RelationMember member : members) {
+				writer.writeVarLong(Relation.getRoleId(member.getRole()));
+				write(member.getEntity(), writer, last);
+			}
+		} else {
+			int memberCount = relation.getMemberCount();
+			writer.writeVarLong(memberCount);
+			long last = 0;
+			for(int i = 0; i < memberCount; i++) {
+				writer.writeVarLong(relation.getMemberType(i).ordinal());
+				writer.writeSignedVarLong(relation.getMemberId(i) - last);
+				writer.writeVarLong(Relation.getRoleId(relation.getMemberRole(i)));
+				last = relation.getMemberId(i);
+			}
+		}
+	}
+
+	private static Relation readRelation(int header, VarIntReader reader, long lastId) {
+		long id = lastId + reader.readSignedVarLong();
+		Tags tags = readTags(reader);
+
+		int memberCount = reader.readVarInt();
+		if((header & RESOLVED) != 0) {
+			List<RelationMember> members = new ArrayList<RelationMember>(memberCount);
+			long[] last = new long[3];
+			for(int i = 0; i < memberCount; i++) {
+				String role = Relation.getRole(reader.readVarInt());
+				members.add(new RelationMember(read(reader, last), role));
+			}
+			return new Relation(id, tags, members, (header & INCOMPLETE) != 0);
+		}
+
+		long[] memberIds = new long[memberCount];
+		byte[] memberTypes = new byte[memberCount];
+		int[] memberRoles = new int[memberCount];
+		long last = 0;
+		for(int i = 0; i < memberCount; i++) {
+			memberTypes[i] = (byte)reader.readVarInt();
+			last += reader.readSignedVarLong();
+			memberIds[i] = last;
+			memberRoles[i] = reader.readVarInt();
+		}
+		return new Relation(id, tags, memberIds, memberTypes, memberRoles);
+	}
+
+	private static void writeTags(Tags tags, VarIntWriter writer) {
+		writer.writeVarLong(tags.size());
+		for(String key : tags) {
+			writer.writeVarLong(Tags.getKeyId(key));
+			writer.writeString(tags.get(key));
+		}
+	}
+
+	private static Tags readTags(VarIntReader reader) {
+		int tagCount = reader.readVarInt();
+		if(tagCount == 0) {
+			return null;
+		}
+		Tags tags = new Tags();
+		for(int i = 0; i < tagCount; i++) {
+			int keyId = reader.readVarInt();
+			tags.set(keyId, Tags.internValue(reader.readString()));
+		}
+		return tags;
+	}
+}
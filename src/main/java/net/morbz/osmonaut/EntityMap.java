@@ -30,7 +30,6 @@ import net.morbz.osmonaut.osm.Entity;
  * Maps entity IDs to entities.
  */
 public interface EntityMap<T extends Entity> {
-	// TODO: Add unit test for EntityMaps
 	/**
 	 * Adds the entity to the map.
 	 * @param entity The entity to store
@@ -43,4 +42,14 @@ public interface EntityMap<T extends Entity> {
 	 * present
 	 */
 	public T get(long id);
+
+	/**
+	 * Removes the entity from the map if it is present. The default 
+	 * implementation does nothing, so the entity stays in the map until the
+	 * map is discarded.
+	 * @param id The entity ID
+	 */
+	public default void remove(long id) {
+
+	}
 }
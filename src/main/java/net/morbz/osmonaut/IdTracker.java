@@ -24,118 +24,52 @@ package net.morbz.osmonaut;
 * SOFTWARE.
 */
 
-import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.List;
+import java.util.function.LongConsumer;
 
 /**
- * Keeps track of which IDs are needed. Uses chunks of BitSet for storing IDs.
- * Every ID requires at least 1 bit of memory + BitSet overhead. Doesn't 
- * support negative ID values.
+ * Keeps track of which IDs are needed. Implementations differ in how the 
+ * IDs are stored, which matters for the memory usage depending on how dense
+ * the needed IDs are.
  */
-public class IdTracker {
-	/* TODO: Can be optimized to use 20-30% less RAM if long-arrays are used
-	 * instead of BitSet */
-	private List<BitSet> segments = new ArrayList<BitSet>();
-	private static final int idsPerSegment = 512; // Should be a multiple of 64
-
+public interface IdTracker {
 	/**
 	 * Marks the entity with the given ID as needed.
 	 * @param id The needed ID
+	 * @return true if the ID was not needed before
 	 */
-	public void set(long id) {
-		// Grow array
-		int segmentId = getSegmentId(id);
-		while(!arraySpaceAllocated(segmentId))  {
-			segments.add(null);
-		}
-
-		// Get/create segment
-		BitSet segment = segments.get(segmentId);
-		if(segment == null) {
-			segment = new BitSet(idsPerSegment);
-			segments.set(segmentId, segment);
-		}
-
-		// Set bit
-		int segmentPosition = getSegmentPosition(id);
-		segment.set(segmentPosition);	
-	}
+	public boolean set(long id);
 
 	/**
 	 * @param id The entity ID
 	 * @return true if the entity with ID is needed
 	 */
-	public boolean get(long id) {
-		// Check array size
-		int segmentId = getSegmentId(id);
-		if(!arraySpaceAllocated(segmentId))  {
-			return false;
-		}
-
-		// Get segment
-		BitSet segment = segments.get(segmentId);
-		if(segment == null) {
-			return false;
-		}
-
-		// Get bit
-		int segmentPosition = getSegmentPosition(id);
-		return segment.get(segmentPosition);
-	}
+	public boolean get(long id);
 
 	/**
 	 * Marks the entity with this ID as not needed anymore.
 	 * @param id The entity ID
 	 */
-	public void unset(long id) {
-		// Check array size
-		int segmentId = getSegmentId(id);
-		if(!arraySpaceAllocated(segmentId))  {
-			return;
-		}
-
-		// Get segment
-		BitSet segment = segments.get(segmentId);
-		if(segment == null) {
-			return;
-		}
-
-		// Unset bit
-		int segmentPosition = getSegmentPosition(id);
-		segment.clear(segmentPosition);
-
-		// Remove segment if empty
-		if(segment.isEmpty()) {
-			segments.set(segmentId, null);
-		}
-	}
+	public void unset(long id);
 
 	/**
 	 * @return true if there are no needed entities
 	 */
-	public boolean isEmpty() {
-		// Iterate through all segments
-		for(BitSet segment : segments) {
-			if(segment == null) {
-				continue;
-			}
-			if(!segment.isEmpty()) {
-				return false;
-			}
-		}
-		return true;
-	}
+	public boolean isEmpty();
 
-	private int getSegmentId(long id) {
-		return (int)(id / idsPerSegment);
-	}
+	/**
+	 * @return The number of needed entities
+	 */
+	public long size();
 
-	private int getSegmentPosition(long id) {
-		return (int)(id % idsPerSegment);
-	}
+	/**
+	 * @return The approximate number of bytes that are used to store the IDs
+	 */
+	public long getMemorySize();
 
-	private boolean arraySpaceAllocated(int segmentId) {
-		return segments.size() >= segmentId + 1;
-	}
+	/**
+	 * Calls the action for every needed ID. The order of the IDs is not 
+	 * defined.
+	 * @param action The action
+	 */
+	public void forEach(LongConsumer action);
 }
@@ -0,0 +1,237 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import net.morbz.osmonaut.osm.LatLon;
+import net.morbz.osmonaut.osm.Node;
+import net.morbz.osmonaut.util.TempFiles;
+
+/**
+ * Stores the locations of nodes in a memory mapped temporary file. The file
+ * has a slot of 8 bytes for every node ID, which holds the location as two
+ * fixed-point integers like in NodeLocationMap. The file is sparse, so disk
+ * space is only used for regions that contain nodes, and a lookup is a
+ * single memory access. Nodes with tags and nodes whose location can't be
+ * represented exactly are stored in a separate map. The file is deleted when
+ * the map is closed.
+ */
+public class MappedNodeLocationMap implements EntityMap<Node>, Closeable {
+	private static final int REGION_BITS = 27;
+	private static final long NODES_PER_REGION = 1L << REGION_BITS;
+	private static final long MAX_REGIONS = 1L << 8;
+	private static final long REGION_SIZE = NODES_PER_REGION * 8;
+
+	// Slots are stored XOR-ed with this value, so that the zeros of unused
+	// regions of the sparse file mark empty slots
+	private static final long EMPTY = NodeLocationMap.EMPTY;
+
+	private FileChannel channel;
+	private long offset = 0;
+	private boolean readOnly = false;
+	private long fileSize;
+	private MappedByteBuffer[] regions = new MappedByteBuffer[0];
+	private EntityMap<Node> nodes;
+
+	/**
+	 * @param nodes The map that stores nodes which can't be stored as
+	 * locations
+	 * @throws IOException If the temporary file can't be created
+	 */
+	public MappedNodeLocationMap(EntityMap<Node> nodes) throws IOException {
+		this.nodes = nodes;
+		channel = TempFiles.openDeletedFile("osmonaut-nodes");
+	}
+
+	/**
+	 * Stores the locations in the given file instead of a temporary file.
+	 * 
+	 * @param channel The channel of the file
+	 * @param offset The position of the first slot in the file
+	 * @param readOnly Whether the file is only read. Nodes can't be added and
+	 * removing nodes has no effect on the file.
+	 * @param nodes The map that stores nodes which can't be stored as
+	 * locations
+	 * @throws IOException If the size of the file can't be read
+	 */
+	MappedNodeLocationMap(FileChannel channel, long offset, boolean readOnly, EntityMap<Node> nodes)
+			throws IOException {
+		this.channel = channel;
+		this.offset = offset;
+		this.readOnly = readOnly;
+		this.nodes = nodes;
+
+		// Read-only files can't grow, so the regions beyond the end of the
+		// file are known to be empty
+		if(readOnly) {
+			fileSize = channel.size();
+			long regionCount = Math.max(0, (fileSize - offset + REGION_SIZE - 1) / REGION_SIZE);
+			regions = new MappedByteBuffer[(int)Math.min(regionCount, MAX_REGIONS)];
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void add(Node node) {
+		LatLon latlon = node.getLatlon();
+		if(node.getTags().size() > 0 || latlon == null || !putLocation(node.getId(), latlon)) {
+			nodes.add(node);
+		}
+	}
+
+	/**
+	 * Stores the location of a node in the file.
+	 * 
+	 * @param id The ID of the node
+	 * @param latlon The location of the node
+	 * @return False if the ID is out of range or the location can't be
+	 * represented exactly
+	 */
+	public boolean putLocation(long id, LatLon latlon) {
+		if(readOnly) {
+			throw new UnsupportedOperationException("Node location file is read-only.");
+		}
+		if(!isMapped(id)) {
+			return false;
+		}
+
+		// Check that the location doesn't lose precision
+		long location = NodeLocationMap.encode(latlon);
+		if(location == EMPTY) {
+			return false;
+		}
+
+		getRegion(id, true).putLong(getSlot(id), location ^ EMPTY);
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Node get(long id) {
+		if(isMapped(id)) {
+			MappedByteBuffer region = getRegion(id, false);
+			if(region != null && getSlot(id) < region.limit()) {
+				long location = region.getLong(getSlot(id)) ^ EMPTY;
+				if(location != EMPTY) {
+					return new Node(id, null, NodeLocationMap.decode(location));
+				}
+			}
+		}
+		return nodes.get(id);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void remove(long id) {
+		if(isMapped(id) && !readOnly) {
+			MappedByteBuffer region = getRegion(id, false);
+			if(region != null && region.getLong(getSlot(id)) != 0) {
+				region.putLong(getSlot(id), 0);
+				return;
+			}
+		}
+		nodes.remove(id);
+	}
+
+	/**
+	 * Writes the changes of all mapped regions to the disk. Forcing the
+	 * channel of the file doesn't guarantee that changes which are made
+	 * through mapped regions are written.
+	 */
+	public void force() {
+		if(readOnly) {
+			return;
+		}
+		for(MappedByteBuffer region : regions) {
+			if(region != null) {
+				region.force();
+			}
+		}
+	}
+
+	/**
+	 * Closes the file. The regions are released when they are garbage 
+	 * collected. The map can't be used afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		regions = new MappedByteBuffer[0];
+		channel.close();
+		if(nodes instanceof Closeable) {
+			((Closeable)nodes).close();
+		}
+	}
+
+	private boolean isMapped(long id) {
+		return id >= 0 && (id >> REGION_BITS) < MAX_REGIONS;
+	}
+
+	private MappedByteBuffer getRegion(long id, boolean create) {
+		int index = (int)(id >> REGION_BITS);
+		if(index >= regions.length) {
+			if(!create) {
+				return null;
+			}
+			regions = Arrays.copyOf(regions, index + 1);
+		}
+		MappedByteBuffer region = regions[index];
+		if(region == null && (create || readOnly)) {
+			// Mapping a region beyond the end of the file grows the file
+			// without allocating disk space. Read-only files can't grow, so
+			// only the part of the last region that exists is mapped.
+			try {
+				long size = REGION_SIZE;
+				long position = offset + index * size;
+				if(readOnly) {
+					size = Math.min(size, fileSize - position);
+					region = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+				} else {
+					region = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to map node location file.", e);
+			}
+			region.order(ByteOrder.nativeOrder());
+			regions[index] = region;
+		}
+		return region;
+	}
+
+	private int getSlot(long id) {
+		return (int)(id & (NODES_PER_REGION - 1)) * 8;
+	}
+}
@@ -25,19 +25,24 @@ package net.morbz.osmonaut;
 */
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import net.morbz.osmonaut.osm.Entity;
+import net.morbz.osmonaut.util.LongArrays;
 
 /**
  * Uses heap to store entities. As fast as TLongObjectHashMap but has a far 
- * lower memory usage. Uses bucket arrays and does a binary search to find
- * entities. Does not support duplicate handling.
+ * lower memory usage. Uses bucket arrays and does a binary search on an array
+ * of the IDs to find entities. Buckets that were filled out of order are 
+ * sorted in parallel on the common fork-join pool before the first lookup.
+ * Does not support duplicate handling. Removed entities leave gaps in the 
+ * buckets, which are removed when they make up half of a bucket.
  */
 public class MemoryEntityMap<T extends Entity> implements EntityMap<T> {
-	private List<List<T>> buckets = new ArrayList<List<T>>();
+	private List<Bucket<T>> buckets = new ArrayList<Bucket<T>>();
 	private boolean sorted = true;
 
 	private static final int entitiesPerBucket = 1_000_000;
@@ -54,15 +59,17 @@ public class MemoryEntityMap<T extends Entity> implements EntityMap<T> {
 		}
 
 		// Get/create bucket
-		List<T> bucket = buckets.get(bucketId);
+		Bucket<T> bucket = buckets.get(bucketId);
 		if(bucket == null) {
-			bucket = new ArrayList<T>();
+			bucket = new Bucket<T>();
 			buckets.set(bucketId, bucket);
 		}
 
 		// Add entity
 		bucket.add(entity);
-		sorted = false;
+		if(!bucket.sorted) {
+			sorted = false;
+		}
 	}
 
 	/**
@@ -70,6 +77,25 @@ public class MemoryEntityMap<T extends Entity> implements EntityMap<T> {
 	 */
 	@Override
 	public T get(long id) {
+		Bucket<T> bucket = getSortedBucket(id);
+		if(bucket == null) {
+			return null;
+		}
+		return bucket.get(id);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void remove(long id) {
+		Bucket<T> bucket = getSortedBucket(id);
+		if(bucket != null) {
+			bucket.remove(id);
+		}
+	}
+
+	private Bucket<T> getSortedBucket(long id) {
 		// Ensure that arrays are sorted
 		if(!sorted) {
 			sort();
@@ -81,46 +107,31 @@ public class MemoryEntityMap<T extends Entity> implements EntityMap<T> {
 		if(!arraySpaceAllocated(bucketId)) {
 			return null;
 		}
-
-		// Get bucket
-		List<T> bucket = buckets.get(bucketId);
-		if(bucket == null) {
-			return null;
-		}
-
-		// Binary search for entity
-		int low = 0;
-		int high = bucket.size() - 1;
-		while(low <= high) {
-			int mid = (low + high) >>> 1;
-			long midId = bucket.get(mid).getId();
-
-			if(midId < id)
-				low = mid + 1;
-			else if(midId > id)
-				high = mid - 1;
-			else {
-				return bucket.get(mid);
-			}
-		}
-		return null;
+		return buckets.get(bucketId);
 	}
 
 	private void sort() {
-		// Create comparator
-		Comparator<T> comp = new Comparator<T>() {
-			public int compare(T t1, T t2) {
-				return Long.compare(t1.getId(), t2.getId());
-			}
-		};
-
-		// Sort all buckets
-		for(List<T> bucket : buckets) {
-			if(bucket == null) {
+		// Create a task for every unsorted bucket
+		List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for(final Bucket<T> bucket : buckets) {
+			if(bucket == null || bucket.sorted) {
 				continue;
 			}
+			tasks.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					bucket.sort();
+				}
+			});
+		}
 
-			Collections.sort(bucket, comp);
+		// Sort buckets in parallel
+		if(tasks.size() == 1) {
+			tasks.get(0).invoke();
+		} else {
+			ForkJoinTask.invokeAll(tasks);
 		}
 	}
 
@@ -131,4 +142,90 @@ public class MemoryEntityMap<T extends Entity> implements EntityMap<T> {
 	private boolean arraySpaceAllocated(int bucketId) {
 		return buckets.size() >= bucketId + 1;
 	}
+
+	/**
+	 * Holds the entities of a range of IDs together with an array of their
+	 * IDs, so that the binary search doesn't have to access the entities.
+	 */
+	private static class Bucket<T extends Entity> {
+		private long[] ids = new long[16];
+		private Object[] entities = new Object[16];
+		private int size = 0;
+		private int gapCount = 0;
+		private boolean sorted = true;
+
+		void add(T entity) {
+			// Grow arrays
+			if(size == ids.length) {
+				int capacity = size + size / 2;
+				ids = Arrays.copyOf(ids, capacity);
+				entities = Arrays.copyOf(entities, capacity);
+			}
+
+			// Detect unsorted input
+			long id = entity.getId();
+			if(size > 0 && ids[size - 1] > id) {
+				sorted = false;
+			}
+			ids[size] = id;
+			entities[size] = entity;
+			size++;
+		}
+
+		@SuppressWarnings("unchecked")
+		T get(long id) {
+			int index = Arrays.binarySearch(ids, 0, size, id);
+			if(index < 0) {
+				return null;
+			}
+			return (T)entities[index];
+		}
+
+		void remove(long id) {
+			int index = Arrays.binarySearch(ids, 0, size, id);
+			if(index < 0 || entities[index] == null) {
+				return;
+			}
+
+			// Removing the entity from the arrays would move all following
+			// entities, so it's replaced by a gap
+			entities[index] = null;
+			gapCount++;
+
+			// Remove the gaps when they take too much space
+			if(gapCount * 2 > size) {
+				removeGaps();
+			}
+		}
+
+		void sort() {
+			// Sort the IDs together with the original positions of the
+			// entities, then move the entities to their new positions
+			long[] positions = new long[size];
+			for(int i = 0; i < size; i++) {
+				positions[i] = i;
+			}
+			LongArrays.sort(ids, positions, 0, size);
+			Object[] sortedEntities = new Object[entities.length];
+			for(int i = 0; i < size; i++) {
+				sortedEntities[i] = entities[(int)positions[i]];
+			}
+			entities = sortedEntities;
+			sorted = true;
+		}
+
+		private void removeGaps() {
+			int newSize = 0;
+			for(int i = 0; i < size; i++) {
+				if(entities[i] != null) {
+					ids[newSize] = ids[i];
+					entities[newSize] = entities[i];
+					newSize++;
+				}
+			}
+			Arrays.fill(entities, newSize, size, null);
+			size = newSize;
+			gapCount = 0;
+		}
+	}
 }
@@ -0,0 +1,190 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import net.morbz.osmonaut.osm.Node;
+
+/**
+ * Stores the locations of all nodes of a PBF file in a sidecar file, so that
+ * repeated scans of the same file don't have to scan the nodes again. The
+ * file starts with a header that contains the file size and modification
+ * time of the PBF file, followed by the slots of a MappedNodeLocationMap. 
+ * The file is only used as long as the PBF file matches and all nodes have
+ * been stored. New files are written under a temporary name and renamed
+ * when they are complete, so that other processes can keep using the 
+ * previous file in the meantime.
+ */
+public class NodeLocationFile {
+	private static final int magic = 0x4f4e4e4c; // "ONNL"
+	private static final int version = 1;
+	private static final int headerSize = 4096;
+
+	private File locationFile;
+	private long fileSize;
+	private long lastModified;
+	private FileChannel channel;
+	private MappedNodeLocationMap locations;
+	private File tempFile;
+
+	/**
+	 * @param locationFile The sidecar file that stores the locations
+	 * @param pbfFile The PBF file of the nodes
+	 */
+	public NodeLocationFile(File locationFile, File pbfFile) {
+		this.locationFile = locationFile;
+		this.fileSize = pbfFile.length();
+		this.lastModified = pbfFile.lastModified();
+	}
+
+	/**
+	 * Opens the locations of a previous scan. The nodes that are returned by
+	 * the map have no tags.
+	 * 
+	 * @return The read-only map of the locations or null if the file doesn't
+	 * exist, is incomplete or doesn't match the PBF file
+	 */
+	public MappedNodeLocationMap open() {
+		if(!locationFile.isFile()) {
+			return null;
+		}
+
+		try {
+			channel = new RandomAccessFile(locationFile, "r").getChannel();
+			ByteBuffer header = ByteBuffer.allocate(headerSize);
+			while(header.hasRemaining()) {
+				if(channel.read(header, header.position()) == -1) {
+					close();
+					return null;
+				}
+			}
+			header.flip();
+			if(!isValid(header)) {
+				close();
+				return null;
+			}
+			return new MappedNodeLocationMap(channel, headerSize, true, new MemoryEntityMap<Node>());
+		} catch (IOException e) {
+			close();
+			return null;
+		}
+	}
+
+	/**
+	 * Creates an empty temporary file for the locations in the directory of
+	 * the location file. It replaces the location file when complete() is
+	 * called.
+	 * 
+	 * @return The map to store the locations in with putLocation()
+	 * @throws IOException If the file can't be created
+	 */
+	public MappedNodeLocationMap create() throws IOException {
+		File directory = locationFile.getAbsoluteFile().getParentFile();
+		tempFile = File.createTempFile(locationFile.getName() + ".", ".tmp", directory);
+		channel = new RandomAccessFile(tempFile, "rw").getChannel();
+		writeHeader(false);
+		locations = new MappedNodeLocationMap(channel, headerSize, false, new MemoryEntityMap<Node>());
+		return locations;
+	}
+
+	/**
+	 * Marks the file as complete after the locations of all nodes have been
+	 * stored and replaces the location file with it. The file is closed, the
+	 * map stays usable.
+	 * 
+	 * @throws IOException If the file can't be written or renamed
+	 */
+	public void complete() throws IOException {
+		// Make sure that the locations are written before the header
+		locations.force();
+		channel.force(false);
+		writeHeader(true);
+		channel.force(false);
+		channel.close();
+		channel = null;
+
+		// Readers either see the previous or the complete new file
+		Files.move(tempFile.toPath(), locationFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		tempFile = null;
+	}
+
+	/**
+	 * Closes the file and deletes it if it has been created but not 
+	 * completed. Maps that have been returned stay usable.
+	 */
+	public void close() {
+		if(channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Nothing left to do
+			}
+			channel = null;
+		}
+		if(tempFile != null) {
+			tempFile.delete();
+			tempFile = null;
+		}
+	}
+
+	private boolean isValid(ByteBuffer header) {
+		if(header.getInt() != magic || header.getInt() != version) {
+			return false;
+		}
+		if(header.getLong() != fileSize || header.getLong() != lastModified) {
+			return false;
+		}
+
+		// The slots are stored in the native byte order
+		boolean bigEndian = header.get() == 1;
+		if(bigEndian != (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN)) {
+			return false;
+		}
+		return header.get() == 1;
+	}
+
+	private void writeHeader(boolean complete) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(headerSize);
+		header.putInt(magic);
+		header.putInt(version);
+		header.putLong(fileSize);
+		header.putLong(lastModified);
+		header.put((byte)(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0));
+		header.put((byte)(complete ? 1 : 0));
+		header.rewind();
+		while(header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+import net.morbz.osmonaut.osm.LatLon;
+import net.morbz.osmonaut.osm.Node;
+
+/**
+ * Stores the locations of nodes off-heap in pages that are indexed by the
+ * node ID. Every location is stored as two 32-bit fixed-point integers with a
+ * precision of 7 decimal places, so a node requires 8 bytes in pages that
+ * contain at least one node. Nodes with tags and nodes whose location can't
+ * be represented exactly are stored as objects in a separate map. The nodes
+ * that are returned are new objects. Pages are freed when all of their nodes
+ * have been removed.
+ */
+public class NodeLocationMap implements EntityMap<Node> {
+	private static final int PAGE_BITS = 13;
+	private static final int NODES_PER_PAGE = 1 << PAGE_BITS;
+	private static final long MAX_DIRECT_PAGES = 1L << 22;
+
+	// Latitudes are never that small, so it marks empty slots
+	static final long EMPTY = (long)Integer.MIN_VALUE << 32;
+
+	private ByteBuffer[] pages = new ByteBuffer[0];
+	private int[] pageSizes = new int[0];
+	private EntityMap<Node> nodes = new MemoryEntityMap<Node>();
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void add(Node node) {
+		LatLon latlon = node.getLatlon();
+		long id = node.getId();
+		if(node.getTags().size() > 0 || latlon == null || !isDirect(id)) {
+			nodes.add(node);
+			return;
+		}
+
+		// Check that the location doesn't lose precision
+		long location = encode(latlon);
+		if(location == EMPTY) {
+			nodes.add(node);
+			return;
+		}
+
+		ByteBuffer page = getPage(id, true);
+		if(page.getLong(getSlot(id)) == EMPTY) {
+			pageSizes[(int)(id >> PAGE_BITS)]++;
+		}
+		page.putLong(getSlot(id), location);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Node get(long id) {
+		if(isDirect(id)) {
+			ByteBuffer page = getPage(id, false);
+			if(page != null) {
+				long location = page.getLong(getSlot(id));
+				if(location != EMPTY) {
+					return new Node(id, null, decode(location));
+				}
+			}
+		}
+		return nodes.get(id);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void remove(long id) {
+		if(isDirect(id)) {
+			ByteBuffer page = getPage(id, false);
+			if(page != null && page.getLong(getSlot(id)) != EMPTY) {
+				page.putLong(getSlot(id), EMPTY);
+
+				// Free the page when it's empty
+				int index = (int)(id >> PAGE_BITS);
+				pageSizes[index]--;
+				if(pageSizes[index] == 0) {
+					pages[index] = null;
+				}
+				return;
+			}
+		}
+		nodes.remove(id);
+	}
+
+	/**
+	 * Estimates the memory that this map needs to store the given nodes.
+	 *
+	 * @param ids The IDs of the nodes
+	 * @return The approximate number of bytes
+	 */
+	public static long getMemorySize(IdTracker ids) {
+		final BitmapIdTracker pageIds = new BitmapIdTracker();
+		ids.forEach(new LongConsumer() {
+			@Override
+			public void accept(long id) {
+				pageIds.set(id >> PAGE_BITS);
+			}
+		});
+		return pageIds.size() * NODES_PER_PAGE * 8;
+	}
+
+	/**
+	 * Converts a location into fixed-point integers.
+	 *
+	 * @param latlon The location
+	 * @return The latitude in the upper and the longitude in the lower 32
+	 * bits or EMPTY if the location can't be represented exactly
+	 */
+	static long encode(LatLon latlon) {
+		int lat = toFixed(latlon.getLat());
+		int lon = toFixed(latlon.getLon());
+		if(lat == Integer.MIN_VALUE || lon == Integer.MIN_VALUE) {
+			return EMPTY;
+		}
+		return ((long)lat << 32) | (lon & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @param location The location as returned by encode()
+	 * @return The location
+	 */
+	static LatLon decode(long location) {
+		return new LatLon(fromFixed((int)(location >> 32)), fromFixed((int)location));
+	}
+
+	private static int toFixed(double degrees) {
+		long fixed = Math.round(degrees * 10000000d);
+		if(fixed <= Integer.MIN_VALUE || fixed > Integer.MAX_VALUE || fromFixed((int)fixed) != degrees) {
+			return Integer.MIN_VALUE;
+		}
+		return (int)fixed;
+	}
+
+	private static double fromFixed(int fixed) {
+		// Same calculation as in the PBF decoder with the default granularity,
+		// so that the decoded coordinates are restored exactly
+		return 0.000000001 * (fixed * 100L);
+	}
+
+	private boolean isDirect(long id) {
+		return id >= 0 && (id >> PAGE_BITS) < MAX_DIRECT_PAGES;
+	}
+
+	private ByteBuffer getPage(long id, boolean create) {
+		int index = (int)(id >> PAGE_BITS);
+		if(index >= pages.length) {
+			if(!create) {
+				return null;
+			}
+			int capacity = Math.max(index + 1, pages.length + pages.length / 2);
+			pages = Arrays.copyOf(pages, capacity);
+			pageSizes = Arrays.copyOf(pageSizes, capacity);
+		}
+		ByteBuffer page = pages[index];
+		if(page == null && create) {
+			page = ByteBuffer.allocateDirect(NODES_PER_PAGE * 8).order(ByteOrder.nativeOrder());
+			for(int i = 0; i < NODES_PER_PAGE; i++) {
+				page.putLong(i * 8, EMPTY);
+			}
+			pages[index] = page;
+		}
+		return page;
+	}
+
+	private int getSlot(long id) {
+		return (int)(id & (NODES_PER_PAGE - 1)) * 8;
+	}
+}
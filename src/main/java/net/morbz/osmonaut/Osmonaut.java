@@ -25,8 +25,13 @@ package net.morbz.osmonaut;
 */
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
@@ -46,17 +51,35 @@ import net.morbz.osmonaut.osm.Way;
  * @author MorbZ
  */
 public class Osmonaut {
+	// Rough size of a way with its node IDs and tags on the heap
+	private static final int BYTES_PER_CACHED_WAY = 256;
+
 	private EntityCache<Node> nodeCache;
 	private EntityCache<Way> wayCache;
 
 	private final File file;
 	private final EntityFilter filter;
 	private IOsmonautReceiver receiver;
+	private Map<EntityType, TagFilter> tagFilters = new EnumMap<EntityType, TagFilter>(EntityType.class);
 	private PbfDecoder decoder;
+	private NodeLocationFile nodeLocationFile;
+	private MappedNodeLocationMap storedNodeLocations;
+	private MappedNodeLocationMap newNodeLocations;
+	private DB db;
+	private ScanPlan scanPlan;
+	private EntityBuffer<Relation> discoveredRelations;
+	private EntityBuffer<Way> discoveredWays;
 
 	private boolean wayNodeTags = true;
 	private int processors;
 	private boolean storeOnDisk = false;
+	private boolean memoryMapped = false;
+	private boolean persistBlobIndex = false;
+	private boolean persistNodeLocations = false;
+	private IdTrackerType idTrackerType = IdTrackerType.AUTOMATIC;
+	private boolean parallelDiscovery = false;
+	private boolean referenceCounting = false;
+	private long memoryBudget = 0;
 	private int verbosity = 1;
 
 	/**
@@ -96,6 +119,7 @@ public class Osmonaut {
 	 */
 	public void scan(IOsmonautReceiver receiver) {
 		this.receiver = receiver;
+		scanPlan = null;
 
 		log("OSMonaut started", 1);
 
@@ -108,7 +132,7 @@ public class Osmonaut {
 		// Check if there is at least 1 needed entity type
 		boolean somethingNeeded = false;
 		for (EntityType type : EntityType.values()) {
-			if (filter.getEntityEnabled(type)) {
+			if (isNeededByReceiver(type)) {
 				somethingNeeded = true;
 				break;
 			}
@@ -118,51 +142,317 @@ public class Osmonaut {
 			return;
 		}
 
-		// Create PBF decoder
-		decoder = new PbfDecoder(file, processors);
+		try {
+			// Create PBF decoder
+			decoder = new PbfDecoder(file, processors, memoryMapped);
+			if (persistBlobIndex) {
+				File indexFile = new File(file.getPath() + ".idx");
+				if (decoder.useIndexFile(indexFile)) {
+					log("Using blob index " + indexFile, 1);
+				}
+			}
+
+			// Open or create stored node locations
+			if (persistNodeLocations) {
+				openNodeLocationFile();
+			}
+
+			// Create caches, the entity maps are chosen when the needed IDs are
+			// known
+			nodeCache = new EntityCache<Node>();
+			wayCache = new EntityCache<Way>();
+
+			// Create ID trackers
+			if (parallelDiscovery) {
+				nodeCache.setIdTracker(new ConcurrentIdTracker());
+				wayCache.setIdTracker(new ConcurrentIdTracker());
+			} else if (idTrackerType == IdTrackerType.COMPRESSED) {
+				nodeCache.setIdTracker(new CompressedIdTracker());
+				wayCache.setIdTracker(new CompressedIdTracker());
+			}
+			if (referenceCounting) {
+				nodeCache.enableReferenceCounting();
+				wayCache.enableReferenceCounting();
+			}
+
+			// Plan the passes, the plan is refined by the discovery passes
+			scanPlan = createScanPlan(storedNodeLocations != null, newNodeLocations != null);
+			ScanPlan.Pass pass;
+			while ((pass = scanPlan.nextPass(ScanPlan.Purpose.DISCOVER)) != null) {
+				if (pass.getType() == EntityType.RELATION) {
+					log("Scanning relations...", 1);
+					scanRelations(pass);
+					scanPlan.setWaysNeeded(wayCache.needsEntities());
+				} else {
+					log("Scanning ways...", 1);
+					scanWays(pass);
+				}
+			}
+
+			// All needed IDs are known now
+			if (nodeCache.compactIdTracker(idTrackerType)) {
+				log("Compressed needed node IDs", 1);
+			}
+			if (wayCache.compactIdTracker(idTrackerType)) {
+				log("Compressed needed way IDs", 1);
+			}
+
+			// Choose where the needed entities are stored
+			chooseEntityMaps();
+
+			// Final scan
+			scanPlan.setNodesNeeded(nodeCache.needsEntities());
+			scanPlan.setKept(EntityType.WAY, discoveredWays != null && discoveredWays.isComplete());
+			scanPlan.setKept(EntityType.RELATION, discoveredRelations != null && discoveredRelations.isComplete());
+			log("Final scan...", 1);
+			while ((pass = scanPlan.nextPass(ScanPlan.Purpose.ASSEMBLE)) != null) {
+				switch (pass.getType()) {
+				case NODE:
+					log("...Scanning nodes", 1);
+					scanNodes(pass);
+					break;
+				case WAY:
+					log(pass.isReused() ? "...Assembling discovered ways" : "...Scanning ways", 1);
+					assembleWays(pass, pass.isReused() ? discoveredWays.takeEntities() : null);
+					break;
+				case RELATION:
+					log(pass.isReused() ? "...Assembling discovered relations" : "...Scanning relations", 1);
+					assembleRelations(pass, pass.isReused() ? discoveredRelations.takeEntities() : null);
+					break;
+				}
+			}
+			log("Scan plan:\n" + scanPlan, 1);
+		} finally {
+			// Close PBF file and the files of the caches, also if the scan
+			// failed, so that no temporary files are left behind
+			if (decoder != null) {
+				decoder.close();
+			}
+			if (nodeLocationFile != null) {
+				nodeLocationFile.close();
+			}
+			if (nodeCache != null) {
+				nodeCache.close();
+			}
+			if (wayCache != null) {
+				wayCache.close();
+			}
+			if (db != null) {
+				db.close();
+			}
+
+			// Free variables
+			nodeLocationFile = null;
+			db = null;
+			storedNodeLocations = null;
+			newNodeLocations = null;
+			discoveredRelations = null;
+			discoveredWays = null;
+			nodeCache = null;
+			wayCache = null;
+			decoder = null;
+		}
+	}
+
+	/**
+	 * Chooses the entity maps of the caches from the number of needed 
+	 * entities. With a memory budget, a cache is stored in memory if its
+	 * estimated size fits into the remaining budget. Nodes are considered
+	 * first, as they are looked up far more often than ways. The estimate of
+	 * the nodes only covers their locations. Tagged nodes are stored as 
+	 * objects, but the tags are unknown until the nodes are scanned, so they
+	 * are not included.
+	 */
+	private void chooseEntityMaps() {
+		// Sparse nodes take less memory in sorted arrays than in pages
+		IdTracker nodeIds = nodeCache.getIdTracker();
+		long pageSize = NodeLocationMap.getMemorySize(nodeIds);
+		long arraySize = nodeIds.size() * SortedNodeLocationMap.BYTES_PER_NODE;
+		long nodeSize = Math.min(pageSize, arraySize);
+		long waySize = wayCache.getIdTracker().size() * BYTES_PER_CACHED_WAY;
+
+		// Kept ways and relations stay in memory until they are assembled
+		long keptSize = getKeptSize(discoveredWays) + getKeptSize(discoveredRelations);
+
+		boolean nodesOnDisk = storeOnDisk;
+		boolean waysOnDisk = storeOnDisk;
+		long wayBudget = 0;
+		if (memoryBudget > 0) {
+			long budget = Math.max(0, memoryBudget - keptSize);
+			nodesOnDisk = nodeSize > budget;
+			wayBudget = budget - (nodesOnDisk ? 0 : nodeSize);
+			waysOnDisk = waySize > wayBudget;
+		}
 
-		// Create caches
-		if (storeOnDisk) {
-			// Create MapDB database
-			DB db = DBMaker.tempFileDB().closeOnJvmShutdown().fileMmapEnableIfSupported().fileChannelEnable().make();
+		// Node cache
+		if (storedNodeLocations != null) {
+			nodeCache.setEntityMap(storedNodeLocations);
+			scanPlan.setStorage(EntityType.NODE, ScanPlan.Storage.DISK);
+		} else if (nodesOnDisk) {
+			// Nodes without tags are only stored as locations in a memory
+			// mapped file, all other nodes are stored in the database
+			db = DBMaker.tempFileDB().closeOnJvmShutdown().fileMmapEnableIfSupported().fileChannelEnable().make();
+			try {
+				nodeCache.setEntityMap(new MappedNodeLocationMap(new DiskEntityMap<Node>(db, "node")));
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to create node location file.", e);
+			}
+			logEntityMap("nodes in a memory mapped file", EntityType.NODE, ScanPlan.Storage.DISK, nodeCache, nodeSize);
+		} else if (nodeCache.needsEntities() && arraySize < pageSize) {
+			nodeCache.setEntityMap(new SortedNodeLocationMap());
+			logEntityMap("nodes in sorted arrays", EntityType.NODE, ScanPlan.Storage.MEMORY, nodeCache, nodeSize);
+		} else {
+			// Nodes without tags are only stored as compact locations
+			nodeCache.setEntityMap(new NodeLocationMap());
+			logEntityMap("nodes in off-heap pages", EntityType.NODE, ScanPlan.Storage.MEMORY, nodeCache, nodeSize);
+		}
 
-			nodeCache = EntityCache.getDiskEntityCache(db, "node");
-			wayCache = EntityCache.getDiskEntityCache(db, "way");
+		// Way cache
+		if (waysOnDisk && wayBudget >= SpillingEntityMap.MIN_MEMORY_BUDGET) {
+			// Keep as many ways in memory as the rest of the budget allows,
+			// a fifth of it is used for cached pages
+			try {
+				wayCache.setEntityMap(new SpillingEntityMap<Way>(wayBudget * 4 / 5));
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to create way file.", e);
+			}
+			logEntityMap("ways in memory and spilled to disk", EntityType.WAY, ScanPlan.Storage.SPILLED, wayCache,
+					waySize);
+		} else if (waysOnDisk) {
+			// Ways are appended to a log file in a compact encoding
+			try {
+				wayCache.setEntityMap(new WayLogMap());
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to create way file.", e);
+			}
+			logEntityMap("ways in a memory mapped file", EntityType.WAY, ScanPlan.Storage.DISK, wayCache, waySize);
 		} else {
-			nodeCache = EntityCache.getMemoryEntityCache();
-			wayCache = EntityCache.getMemoryEntityCache();
+			wayCache.setEntityMap(new MemoryEntityMap<Way>());
+			logEntityMap("ways in memory", EntityType.WAY, ScanPlan.Storage.MEMORY, wayCache, waySize);
+		}
+	}
+
+	/**
+	 * Logs the chosen entity map and records it in the scan plan, if the
+	 * cache needs entities.
+	 */
+	private void logEntityMap(String description, EntityType type, ScanPlan.Storage storage, EntityCache<?> cache,
+			long memorySize) {
+		if (cache.needsEntities()) {
+			scanPlan.setStorage(type, storage);
+			log("Storing needed " + description + " (" + cache.getIdTracker().size() + " entities, ~"
+					+ (memorySize >> 20) + " MB)", 1);
 		}
+	}
+
+	private static long getKeptSize(EntityBuffer<?> buffer) {
+		return buffer == null ? 0 : buffer.getMemorySize();
+	}
 
-		// Scan relations
-		if (filter.getEntityEnabled(EntityType.RELATION)) {
-			log("Scanning relations...", 1);
-			scanRelations();
+	/**
+	 * Plans the passes of a scan without reading the PBF file. The passes 
+	 * for members of ways and relations are planned as if all of them are 
+	 * needed, the scan skips them if they turn out not to be needed.
+	 * 
+	 * @return The plan
+	 */
+	public ScanPlan plan() {
+		boolean nodeLocationsStored = false;
+		if (persistNodeLocations && canUseStoredNodeLocations()) {
+			NodeLocationFile locationFile = new NodeLocationFile(getNodeLocationFile(), file);
+			nodeLocationsStored = locationFile.open() != null;
+			locationFile.close();
 		}
+		return createScanPlan(nodeLocationsStored, persistNodeLocations && !nodeLocationsStored);
+	}
 
-		// Scan ways
-		if (filter.getEntityEnabled(EntityType.WAY) || wayCache.needsEntities()) {
-			log("Scanning ways...", 1);
-			scanWays();
+	/**
+	 * @param nodeLocationsStored
+	 *            Whether stored node locations replace the node scan
+	 * @param storeNodeLocations
+	 *            Whether the node scan stores the locations of all nodes
+	 * @return The plan for the current settings
+	 */
+	private ScanPlan createScanPlan(boolean nodeLocationsStored, boolean storeNodeLocations) {
+		Set<EntityType> receiverTypes = EnumSet.noneOf(EntityType.class);
+		for (EntityType type : EntityType.values()) {
+			if (isNeededByReceiver(type)) {
+				receiverTypes.add(type);
+			}
 		}
 
-		// Final scan
-		log("Final scan...", 1);
-		finalScan();
+		// Entities are only reused with a memory budget. Parallel discovery
+		// finds entities out of the order of the file, so they can't be
+		// reused.
+		boolean reuseEntities = !parallelDiscovery && getReuseCapacity() > 0;
+		return new ScanPlan(receiverTypes, nodeLocationsStored, storeNodeLocations, reuseEntities);
+	}
 
-		// Close PBF file
-		decoder.close();
+	/**
+	 * @return The maximum estimated size in bytes of the entities per type 
+	 *         that are kept from discovery passes, a quarter of the memory
+	 *         budget or 0 without a budget
+	 */
+	private long getReuseCapacity() {
+		return memoryBudget / 4;
+	}
 
-		// Free variables
-		nodeCache = null;
-		wayCache = null;
-		decoder = null;
+	private File getNodeLocationFile() {
+		return new File(file.getPath() + ".nodes");
 	}
 
 	/**
-	 * This scan gets the IDs of all members of required relations.
+	 * @return True if stored node locations can replace the node scan, 
+	 *         which requires that the receiver needs no nodes and way nodes
+	 *         don't need tags
 	 */
-	private void scanRelations() {
-		decoder.scan(EntityType.RELATION, new OsmonautSink() {
+	private boolean canUseStoredNodeLocations() {
+		return !isNeededByReceiver(EntityType.NODE) && !wayNodeTags;
+	}
+
+	/**
+	 * Opens the node locations of a previous scan of the file if they can
+	 * replace the node scan. Otherwise a new location file is created if 
+	 * there is no valid one.
+	 */
+	private void openNodeLocationFile() {
+		File locationFile = getNodeLocationFile();
+		nodeLocationFile = new NodeLocationFile(locationFile, file);
+		storedNodeLocations = nodeLocationFile.open();
+		if (storedNodeLocations != null) {
+			if (canUseStoredNodeLocations()) {
+				log("Using node locations " + locationFile, 1);
+				return;
+			}
+			storedNodeLocations = null;
+			nodeLocationFile.close();
+			nodeLocationFile = null;
+			return;
+		}
+
+		// Store the locations of all nodes during the node scan
+		try {
+			newNodeLocations = nodeLocationFile.create();
+		} catch (IOException e) {
+			log("E: Unable to create node location file " + locationFile, 0);
+			nodeLocationFile.close();
+			nodeLocationFile = null;
+		}
+	}
+
+	/**
+	 * This scan gets the IDs of all members of required relations. The
+	 * required relations are kept for the final scan if the plan reuses them
+	 * and there are few enough of them.
+	 * 
+	 * @param pass
+	 *            The pass of the scan plan
+	 */
+	private void scanRelations(ScanPlan.Pass pass) {
+		if (scanPlan.isReused(EntityType.RELATION)) {
+			discoveredRelations = new EntityBuffer<Relation>(getReuseCapacity());
+		}
+		executePass(pass, getDecoderTagFilter(EntityType.RELATION), null, null, new OsmonautSink() {
 			@Override
 			public void foundEntity(Entity entity) {
 				Relation relation = (Relation)entity;
@@ -171,16 +461,19 @@ public class Osmonaut {
 				if (!entityNeededForReceiver(relation)) {
 					return;
 				}
+				if (discoveredRelations != null) {
+					discoveredRelations.add(relation);
+				}
 
 				// Get all member IDs
-				for (RelationMember member : relation.getMembers()) {
+				for (int i = 0; i < relation.getMemberCount(); i++) {
 					// Member type
-					switch (member.getEntity().getEntityType()) {
+					switch (relation.getMemberType(i)) {
 					case NODE:
-						nodeCache.addNeeded(member.getEntity().getId());
+						nodeCache.addNeeded(relation.getMemberId(i));
 						break;
 					case WAY:
-						wayCache.addNeeded(member.getEntity().getId());
+						wayCache.addNeeded(relation.getMemberId(i));
 						break;
 					case RELATION:
 						// TODO: Handle super-relations
@@ -192,10 +485,18 @@ public class Osmonaut {
 	}
 
 	/**
-	 * This scan gets the IDs of all nodes of required ways.
+	 * This scan gets the IDs of all nodes of required ways. The required ways
+	 * are kept for the final scan if the plan reuses them and there are few
+	 * enough of them.
+	 * 
+	 * @param pass
+	 *            The pass of the scan plan
 	 */
-	private void scanWays() {
-		decoder.scan(EntityType.WAY, new OsmonautSink() {
+	private void scanWays(ScanPlan.Pass pass) {
+		if (scanPlan.isReused(EntityType.WAY)) {
+			discoveredWays = new EntityBuffer<Way>(getReuseCapacity());
+		}
+		executePass(pass, getDecoderTagFilter(EntityType.WAY), wayCache.getIdTracker(), null, new OsmonautSink() {
 			@Override
 			public void foundEntity(Entity entity) {
 				Way way = (Way)entity;
@@ -204,126 +505,255 @@ public class Osmonaut {
 				if (!entityNeededForReceiver(way) && !wayCache.isNeeded(way.getId())) {
 					return;
 				}
+				if (discoveredWays != null) {
+					discoveredWays.add(way);
+				}
 
 				// Add all node IDs
-				for (Node node : way.getNodes()) {
-					nodeCache.addNeeded(node.getId());
+				for (long nodeId : way.getNodeIds()) {
+					nodeCache.addNeeded(nodeId);
 				}
 			}
 		});
 	}
 
 	/**
-	 * This scan is executed when all required nodes and ways are cached.
+	 * Executes a pass of the scan plan and measures it. Entities are either
+	 * read from the file or taken from an earlier pass. With parallel 
+	 * discovery the sink of discovery passes is called by the decoder 
+	 * threads.
+	 * 
+	 * @param pass
+	 *            The pass of the scan plan
+	 * @param tagFilter
+	 *            The tag filter for the decoder
+	 * @param neededIds
+	 *            The IDs of entities that are needed regardless of the tag 
+	 *            filter
+	 * @param entities
+	 *            The entities of an earlier pass or null to read the file
+	 * @param sink
+	 *            The sink for the entities
 	 */
-	private void finalScan() {
-		if(filter.getEntityEnabled(EntityType.NODE) || nodeCache.needsEntities()) {
-			log("...Scanning nodes", 1);
-			decoder.scan(EntityType.NODE, new OsmonautSink() {
+	private void executePass(final ScanPlan.Pass pass, TagFilter tagFilter, IdTracker neededIds,
+			List<? extends Entity> entities, final OsmonautSink sink) {
+		pass.start();
+		if (entities != null) {
+			// The entities are released as soon as they have been passed on
+			for (int i = 0; i < entities.size(); i++) {
+				Entity entity = entities.set(i, null);
+				pass.countEntity();
+				sink.foundEntity(entity);
+			}
+		} else {
+			OsmonautSink countingSink = new OsmonautSink() {
 				@Override
 				public void foundEntity(Entity entity) {
-					Node node = (Node)entity;
+					pass.countEntity();
+					sink.foundEntity(entity);
+				}
+			};
+			if (parallelDiscovery && pass.getPurpose() == ScanPlan.Purpose.DISCOVER) {
+				decoder.scanConcurrently(pass.getType(), tagFilter, neededIds, countingSink);
+			} else {
+				decoder.scan(pass.getType(), tagFilter, neededIds, countingSink);
+			}
+		}
+		pass.finish();
+	}
 
-					// Is needed by receiver?
-					if (entityNeededForReceiver(node)) {
-						receiver.foundEntity(node);
-					}
+	/**
+	 * Passes the needed nodes to the receiver and caches the nodes of ways
+	 * and relations.
+	 * 
+	 * @param pass
+	 *            The pass of the scan plan
+	 */
+	private void scanNodes(ScanPlan.Pass pass) {
+		// All nodes are needed to store their locations
+		TagFilter tagFilter = newNodeLocations == null ? getDecoderTagFilter(EntityType.NODE) : null;
+		final boolean[] locationsComplete = { true };
+		executePass(pass, tagFilter, nodeCache.getIdTracker(), null, new OsmonautSink() {
+			@Override
+			public void foundEntity(Entity entity) {
+				Node node = (Node)entity;
 
-					// Is needed for ways/relations?
-					if (nodeCache.isNeeded(node.getId())) {
-						if (!wayNodeTags) {
-							// Remove tags
-							node = new Node(node.getId(), null, node.getLatlon());
-						}
-						nodeCache.addEntity(node);
-					}
+				// Store location
+				if (newNodeLocations != null && node.getLatlon() != null
+						&& !newNodeLocations.putLocation(node.getId(), node.getLatlon())) {
+					locationsComplete[0] = false;
 				}
-			});
-		}
 
-		if(filter.getEntityEnabled(EntityType.WAY) || wayCache.needsEntities()) {
-			log("...Scanning ways", 1);
-			decoder.scan(EntityType.WAY, new OsmonautSink() {
-				@Override
-				public void foundEntity(Entity entity) {
-					Way way = (Way)entity;
+				// Is needed by receiver?
+				if (entityNeededForReceiver(node)) {
+					receiver.foundEntity(node);
+				}
 
-					// Is needed?
-					if (!entityNeededForReceiver(way) && !wayCache.isNeeded(way.getId())) {
-						return;
+				// Is needed for ways/relations?
+				if (nodeCache.isNeeded(node.getId())) {
+					if (!wayNodeTags) {
+						// Remove tags
+						node = new Node(node.getId(), null, node.getLatlon());
 					}
+					nodeCache.addEntity(node);
+				}
+			}
+		});
 
-					// Assemble nodes
-					List<Node> nodes = new ArrayList<Node>();
-					for (Node incompleteNode : way.getNodes()) {
-						Node node = nodeCache.getEntity(incompleteNode.getId());
-						if (node == null) {
-							log("E: Node for way not found", 0);
-						} else {
-							nodes.add(node);
-						}
-					}
+		// Only complete location files are used by later scans
+		if (newNodeLocations != null) {
+			saveNodeLocations(locationsComplete[0]);
+		}
+	}
 
-					// Assemble way
-					Way newWay = new Way(way.getId(), way.getTags(), nodes);
+	/**
+	 * Passes the needed ways to the receiver and caches the ways of 
+	 * relations.
+	 * 
+	 * @param pass
+	 *            The pass of the scan plan
+	 * @param ways
+	 *            The ways of the discovery scan or null to read the file
+	 */
+	private void assembleWays(ScanPlan.Pass pass, List<Way> ways) {
+		TagFilter tagFilter = getDecoderTagFilter(EntityType.WAY);
+		executePass(pass, tagFilter, wayCache.getIdTracker(), ways, new OsmonautSink() {
+			@Override
+			public void foundEntity(Entity entity) {
+				Way way = (Way)entity;
 
-					// Is needed by receiver?
-					if (entityNeededForReceiver(way)) {
-						receiver.foundEntity(newWay);
-					}
+				// Is needed?
+				if (!entityNeededForReceiver(way) && !wayCache.isNeeded(way.getId())) {
+					return;
+				}
 
-					// Is needed for relations?
-					if (wayCache.isNeeded(way.getId())) {
-						wayCache.addEntity(newWay);
-					}
+				// Is needed by receiver?
+				if (entityNeededForReceiver(way)) {
+					receiver.foundEntity(assembleWay(way));
 				}
-			});
-		}
 
-		if(filter.getEntityEnabled(EntityType.RELATION)) {
-			log("...Scanning relations", 1);
-			decoder.scan(EntityType.RELATION, new OsmonautSink() {
-				@Override
-				public void foundEntity(Entity entity) {
-					Relation relation = (Relation)entity;
+				// Is needed for relations? Only the node IDs are cached,
+				// the nodes are resolved when the relation is assembled.
+				if (wayCache.isNeeded(way.getId())) {
+					wayCache.addEntity(way);
+				} else {
+					releaseNodes(way);
+				}
+			}
+		});
+	}
 
-					// Is needed?
-					if (!entityNeededForReceiver(relation)) {
-						return;
-					}
+	/**
+	 * Passes the needed relations with their members to the receiver.
+	 * 
+	 * @param pass
+	 *            The pass of the scan plan
+	 * @param relations
+	 *            The relations of the discovery scan or null to read the file
+	 */
+	private void assembleRelations(ScanPlan.Pass pass, List<Relation> relations) {
+		TagFilter tagFilter = getDecoderTagFilter(EntityType.RELATION);
+		executePass(pass, tagFilter, null, relations, new OsmonautSink() {
+			@Override
+			public void foundEntity(Entity entity) {
+				Relation relation = (Relation)entity;
 
-					// Assemble members
-					boolean incomplete = relation.isIncomplete();
-					List<RelationMember> members = new ArrayList<RelationMember>();
-					for (RelationMember member : relation.getMembers()) {
-						// Get real entity
-						long id = member.getEntity().getId();
-						Entity memberEntity = null;
-						switch (member.getEntity().getEntityType()) {
-						case NODE:
-							memberEntity = nodeCache.getEntity(id);
-							break;
-						case WAY:
-							memberEntity = wayCache.getEntity(id);
-							break;
-						default:
-							break;
-						}
+				// Is needed?
+				if (!entityNeededForReceiver(relation)) {
+					return;
+				}
 
-						// Add entity
-						if (memberEntity == null) {
-							// System.out.println("E: Missing relation member");
-							incomplete = true;
-						} else {
-							members.add(new RelationMember(memberEntity, member.getRole()));
+				// Assemble members
+				boolean incomplete = relation.isIncomplete();
+				List<RelationMember> members = new ArrayList<RelationMember>();
+				for (int i = 0; i < relation.getMemberCount(); i++) {
+					// Get real entity
+					long id = relation.getMemberId(i);
+					Entity memberEntity = null;
+					switch (relation.getMemberType(i)) {
+					case NODE:
+						memberEntity = nodeCache.getEntity(id);
+						nodeCache.release(id);
+						break;
+					case WAY:
+						Way way = wayCache.getEntity(id);
+						if (way != null) {
+							memberEntity = assembleWay(way);
+							if (wayCache.release(id)) {
+								releaseNodes(way);
+							}
 						}
+						break;
+					default:
+						break;
 					}
 
-					// Assemble relation
-					Relation newRelation = new Relation(relation.getId(), relation.getTags(), members, incomplete);
-					receiver.foundEntity(newRelation);
+					// Add entity
+					if (memberEntity == null) {
+						// System.out.println("E: Missing relation member");
+						incomplete = true;
+					} else {
+						members.add(new RelationMember(memberEntity, relation.getMemberRole(i)));
+					}
 				}
-			});
+
+				// Assemble relation
+				Relation newRelation = new Relation(relation.getId(), relation.getTags(), members, incomplete);
+				receiver.foundEntity(newRelation);
+			}
+		});
+	}
+
+	/**
+	 * Marks the new node location file as complete.
+	 * 
+	 * @param complete
+	 *            Whether all node locations could be stored
+	 */
+	private void saveNodeLocations(boolean complete) {
+		if (!complete) {
+			log("E: Node locations can't be stored, because they are out of range or too precise", 0);
+			return;
+		}
+		try {
+			nodeLocationFile.complete();
+			log("Stored node locations", 1);
+		} catch (IOException e) {
+			log("E: Unable to store node locations", 0);
+		}
+	}
+
+	/**
+	 * Resolves the nodes of a way from the node cache.
+	 * 
+	 * @param way
+	 *            The way with node IDs
+	 * @return The way with nodes
+	 */
+	private Way assembleWay(Way way) {
+		long[] nodeIds = way.getNodeIds();
+		List<Node> nodes = new ArrayList<Node>(nodeIds.length);
+		for (long nodeId : nodeIds) {
+			Node node = nodeCache.getEntity(nodeId);
+			if (node == null) {
+				log("E: Node for way not found", 0);
+			} else {
+				nodes.add(node);
+			}
+		}
+		return new Way(way.getId(), way.getTags(), nodes);
+	}
+
+	/**
+	 * Releases the references of a way to its nodes, after the way has been
+	 * assembled for the last time.
+	 * 
+	 * @param way
+	 *            The way with node IDs
+	 */
+	private void releaseNodes(Way way) {
+		for (long nodeId : way.getNodeIds()) {
+			nodeCache.release(nodeId);
 		}
 	}
 
@@ -340,12 +770,49 @@ public class Osmonaut {
 		if (!filter.getEntityEnabled(type)) {
 			return false;
 		}
+		TagFilter tagFilter = tagFilters.get(type);
+		if (tagFilter != null && !tagFilter.matches(entity.getTags())) {
+			return false;
+		}
 		if (!receiver.needsEntity(type, entity.getTags())) {
 			return false;
 		}
 		return true;
 	}
 
+	/**
+	 * Checks if the receiver may need entities of this type at all. Types 
+	 * with an empty tag filter are not needed, as the filter rejects all 
+	 * entities.
+	 * 
+	 * @param type
+	 *            The entity type
+	 * @return True if the receiver may need entities of this type
+	 */
+	private boolean isNeededByReceiver(EntityType type) {
+		if (!filter.getEntityEnabled(type)) {
+			return false;
+		}
+		TagFilter tagFilter = tagFilters.get(type);
+		return tagFilter == null || !tagFilter.isEmpty();
+	}
+
+	/**
+	 * Returns the tag filter for the decoder. Types that are not needed by 
+	 * the receiver are rejected by an empty filter, so that the decoder only
+	 * returns the needed entities of these types.
+	 * 
+	 * @param type
+	 *            The entity type
+	 * @return The filter or null if all entities of the type are needed
+	 */
+	private TagFilter getDecoderTagFilter(EntityType type) {
+		if (!isNeededByReceiver(type)) {
+			return new TagFilter();
+		}
+		return tagFilters.get(type);
+	}
+
 	// TODO: Add progress receiver interface, so that the caller can be 
 	// informed about the progress even with verbosity = 0
 	// TODO: Use Log4j instead of sysouts
@@ -355,6 +822,14 @@ public class Osmonaut {
 		}
 	}
 
+	/**
+	 * @return The passes of the last scan with the number of entities they
+	 *         read and their durations or null if nothing has been scanned
+	 */
+	public ScanPlan getScanPlan() {
+		return scanPlan;
+	}
+
 	/* Settings */
 	/**
 	 * @param wayNodeTags
@@ -384,6 +859,130 @@ public class Osmonaut {
 		this.storeOnDisk = storeOnDisk;
 	}
 
+	/**
+	 * @param memoryMapped
+	 *            Whether the PBF file should be memory mapped instead of being
+	 *            read into heap buffers. This avoids copying the file on every
+	 *            scan pass when the file is in the page cache. Defaults to
+	 *            'false'.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * @param persistBlobIndex
+	 *            Whether the index of the blobs in the PBF file should be 
+	 *            stored in a sidecar file next to it (e.g. 'planet.osm.pbf.idx').
+	 *            Later scans of the unchanged file then only read the blobs
+	 *            they need, even on the first pass. Defaults to 'false'.
+	 */
+	public void setPersistBlobIndex(boolean persistBlobIndex) {
+		this.persistBlobIndex = persistBlobIndex;
+	}
+
+	/**
+	 * @param persistNodeLocations
+	 *            Whether the locations of all nodes in the PBF file should be
+	 *            stored in a sidecar file next to it (e.g. 
+	 *            'planet.osm.pbf.nodes'), which is memory mapped by later 
+	 *            scans of the unchanged file. Scans that need no nodes and
+	 *            no way node tags (see setWayNodeTags()) then skip the node
+	 *            scan and the scan for the nodes of ways. The file needs 8 bytes for every node ID up to the
+	 *            highest ID, but unused regions take no disk space on most
+	 *            file systems. Defaults to 'false'.
+	 */
+	public void setPersistNodeLocations(boolean persistNodeLocations) {
+		this.persistNodeLocations = persistNodeLocations;
+	}
+
+	/**
+	 * Sets a tag filter for all entity types.
+	 * 
+	 * @param tagFilter
+	 *            The filter that entities have to match before the receiver
+	 *            is asked by needsEntity(). Entities that don't match are
+	 *            rejected by the decoder before their tags are built. May be
+	 *            null to ask the receiver for all entities.
+	 */
+	public void setTagFilter(TagFilter tagFilter) {
+		for (EntityType type : EntityType.values()) {
+			setTagFilter(type, tagFilter);
+		}
+	}
+
+	/**
+	 * @param type
+	 *            The entity type the filter is used for
+	 * @param tagFilter
+	 *            The filter that entities of this type have to match before 
+	 *            the receiver is asked by needsEntity(). Entities that don't
+	 *            match are rejected by the decoder before their tags are 
+	 *            built. May be null to ask the receiver for all entities.
+	 */
+	public void setTagFilter(EntityType type, TagFilter tagFilter) {
+		if (tagFilter == null) {
+			tagFilters.remove(type);
+		} else {
+			tagFilters.put(type, tagFilter);
+		}
+	}
+
+	/**
+	 * @param idTrackerType
+	 *            How the IDs of entities that are needed for ways and 
+	 *            relations are stored. By default they are compressed 
+	 *            automatically if they are sparse.
+	 */
+	public void setIdTrackerType(IdTrackerType idTrackerType) {
+		this.idTrackerType = idTrackerType;
+	}
+
+	/**
+	 * @param parallelDiscovery
+	 *            Whether the scans that find the needed nodes and ways should
+	 *            run on all decoder threads instead of passing every entity
+	 *            to a single thread. If enabled, needsEntity() of the 
+	 *            receiver is called by multiple threads at the same time
+	 *            during these scans, so it must be thread-safe. The entities
+	 *            of these scans are not reused by the final scan, as they 
+	 *            are found out of order. Defaults to 'false'.
+	 */
+	public void setParallelDiscovery(boolean parallelDiscovery) {
+		this.parallelDiscovery = parallelDiscovery;
+	}
+
+	/**
+	 * @param referenceCounting
+	 *            Whether cached nodes and ways should be removed from the 
+	 *            caches as soon as the last way or relation that references
+	 *            them has been assembled. This lowers the peak memory usage
+	 *            for the price of counting the references. Defaults to 
+	 *            'false'.
+	 */
+	public void setReferenceCounting(boolean referenceCounting) {
+		this.referenceCounting = referenceCounting;
+	}
+
+	/**
+	 * @param memoryBudget
+	 *            The number of bytes that the entity caches may use in 
+	 *            memory. When the needed entities are known, each cache is 
+	 *            stored in memory if its estimated size fits into the budget
+	 *            and on disk otherwise. Ways that don't fit keep the rest of
+	 *            the budget and are only partly spilled to disk. The 
+	 *            estimate for nodes excludes the tags of way nodes (see 
+	 *            setWayNodeTags()), which are unknown until the nodes are
+	 *            scanned. Overrides setStoreOnDisk(). With a budget, the
+	 *            ways and relations that are found by discovery passes are 
+	 *            kept for the final scan if their estimated size fits into a
+	 *            quarter of the budget per type, which saves reading them 
+	 *            again. Defaults to 0, which disables the budget.
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
 	/**
 	 * @param verbosity
 	 *            Sets the verbosity level. The levels are:
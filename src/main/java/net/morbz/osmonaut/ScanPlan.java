@@ -0,0 +1,391 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.morbz.osmonaut.osm.EntityType;
+
+/**
+ * Plans the passes of a scan. Discovery passes find the IDs of the entities
+ * that are needed to assemble ways and relations, assembly passes pass the
+ * entities to the receiver. The plan is computed from the entity types that
+ * the receiver needs before the file is read, assuming that ways and
+ * relations need all of their members. When a discovery pass reveals that 
+ * fewer entities are needed, the remaining passes are planned again. 
+ * With a memory budget, assembly passes reuse the entities of a discovery 
+ * pass instead of reading the file again if they fit into a part of it.
+ *
+ * @author MorbZ
+ */
+public class ScanPlan {
+	/**
+	 * The purpose of a pass.
+	 */
+	public enum Purpose {
+		/**
+		 * Finds the IDs of the needed members of ways or relations.
+		 */
+		DISCOVER,
+
+		/**
+		 * Passes the entities to the receiver and caches the needed ones.
+		 */
+		ASSEMBLE
+	}
+
+	/**
+	 * Where the nodes or ways that are needed by other entities are stored.
+	 */
+	public enum Storage {
+		/**
+		 * All entities are stored in memory.
+		 */
+		MEMORY,
+
+		/**
+		 * Entities are stored in memory until the memory budget is reached,
+		 * the rest is spilled to disk.
+		 */
+		SPILLED,
+
+		/**
+		 * All entities are stored on disk.
+		 */
+		DISK
+	}
+
+	/**
+	 * A single pass over the entities of one type.
+	 */
+	public static class Pass {
+		private final EntityType type;
+		private final Purpose purpose;
+		private final boolean reused;
+		private final AtomicLong entityCount = new AtomicLong();
+		private long startTime;
+		private long duration = -1;
+
+		/**
+		 * @param type
+		 *            The entity type
+		 * @param purpose
+		 *            The purpose of the pass
+		 * @param reused
+		 *            Whether the entities of an earlier pass are reused
+		 *            instead of reading the file
+		 */
+		Pass(EntityType type, Purpose purpose, boolean reused) {
+			this.type = type;
+			this.purpose = purpose;
+			this.reused = reused;
+		}
+
+		/**
+		 * @return The entity type
+		 */
+		public EntityType getType() {
+			return type;
+		}
+
+		/**
+		 * @return The purpose of the pass
+		 */
+		public Purpose getPurpose() {
+			return purpose;
+		}
+
+		/**
+		 * @return True if the entities of an earlier pass are reused instead
+		 *         of reading the file
+		 */
+		public boolean isReused() {
+			return reused;
+		}
+
+		/**
+		 * @return The number of entities that have been read by this pass
+		 */
+		public long getEntityCount() {
+			return entityCount.get();
+		}
+
+		/**
+		 * @return The duration of this pass in milliseconds or -1 if it
+		 *         hasn't finished yet
+		 */
+		public long getDuration() {
+			return duration;
+		}
+
+		void start() {
+			startTime = System.nanoTime();
+		}
+
+		/**
+		 * Counts an entity. Can be called by multiple threads.
+		 */
+		void countEntity() {
+			entityCount.incrementAndGet();
+		}
+
+		void finish() {
+			duration = (System.nanoTime() - startTime) / 1000000;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String toString() {
+			String str = (purpose == Purpose.DISCOVER ? "Discover " : "Assemble ");
+			str += type.toString().toLowerCase() + "s";
+			str += (reused ? " (reused)" : " (file)");
+			if (duration >= 0) {
+				str += ": " + entityCount + " entities, " + duration + " ms";
+			}
+			return str;
+		}
+	}
+
+	private final Set<EntityType> receiverTypes;
+	private final boolean nodeLocationsStored;
+	private final boolean storeNodeLocations;
+	private final boolean reuseEntities;
+
+	// Needs that are known after discovery passes, null while unknown
+	private Boolean waysNeeded;
+	private Boolean nodesNeeded;
+	private boolean waysKept = true;
+	private boolean relationsKept = true;
+
+	private List<Pass> passes = new ArrayList<Pass>();
+	private int executedCount = 0;
+	private Map<EntityType, Storage> storages = new EnumMap<EntityType, Storage>(EntityType.class);
+
+	/**
+	 * @param receiverTypes
+	 *            The entity types that the receiver may need
+	 * @param nodeLocationsStored
+	 *            Whether stored node locations replace the node pass
+	 * @param storeNodeLocations
+	 *            Whether the locations of all nodes are stored by the node
+	 *            pass
+	 * @param reuseEntities
+	 *            Whether assembly passes may reuse the entities of 
+	 *            discovery passes
+	 */
+	ScanPlan(Set<EntityType> receiverTypes, boolean nodeLocationsStored, boolean storeNodeLocations,
+			boolean reuseEntities) {
+		this.receiverTypes = receiverTypes;
+		this.nodeLocationsStored = nodeLocationsStored;
+		this.storeNodeLocations = storeNodeLocations;
+		this.reuseEntities = reuseEntities;
+		plan();
+	}
+
+	/**
+	 * Sets whether relations need ways, after the relations have been
+	 * discovered.
+	 *
+	 * @param waysNeeded
+	 *            True if at least one way is needed by relations
+	 */
+	void setWaysNeeded(boolean waysNeeded) {
+		this.waysNeeded = waysNeeded;
+		plan();
+	}
+
+	/**
+	 * Sets whether ways and relations need nodes, after all discovery passes
+	 * have been executed.
+	 *
+	 * @param nodesNeeded
+	 *            True if at least one node is needed by ways or relations
+	 */
+	void setNodesNeeded(boolean nodesNeeded) {
+		this.nodesNeeded = nodesNeeded;
+		plan();
+	}
+
+	/**
+	 * Sets whether all needed entities of a discovery pass have been kept,
+	 * so that the assembly pass can reuse them.
+	 *
+	 * @param type
+	 *            The entity type of the discovery pass
+	 * @param kept
+	 *            True if all needed entities have been kept
+	 */
+	void setKept(EntityType type, boolean kept) {
+		if (type == EntityType.WAY) {
+			waysKept = kept;
+		} else if (type == EntityType.RELATION) {
+			relationsKept = kept;
+		}
+		plan();
+	}
+
+	/**
+	 * Computes the passes that have not been executed yet from what is known
+	 * so far.
+	 */
+	private void plan() {
+		boolean relations = receiverTypes.contains(EntityType.RELATION);
+		boolean ways = receiverTypes.contains(EntityType.WAY) || (waysNeeded == null ? relations : waysNeeded);
+		boolean nodes = receiverTypes.contains(EntityType.NODE)
+				|| (nodesNeeded == null ? ways || relations : nodesNeeded);
+
+		// Stored node locations contain all nodes, so the nodes of ways
+		// don't have to be discovered
+		boolean discoverWays = ways && !nodeLocationsStored;
+
+		List<Pass> planned = new ArrayList<Pass>();
+		if (relations) {
+			planned.add(new Pass(EntityType.RELATION, Purpose.DISCOVER, false));
+		}
+		if (discoverWays) {
+			planned.add(new Pass(EntityType.WAY, Purpose.DISCOVER, false));
+		}
+		if (storeNodeLocations || (nodes && !nodeLocationsStored)) {
+			planned.add(new Pass(EntityType.NODE, Purpose.ASSEMBLE, false));
+		}
+		if (ways) {
+			planned.add(new Pass(EntityType.WAY, Purpose.ASSEMBLE, reuseEntities && discoverWays && waysKept));
+		}
+		if (relations) {
+			planned.add(new Pass(EntityType.RELATION, Purpose.ASSEMBLE, reuseEntities && relationsKept));
+		}
+
+		// Executed passes stay as they are
+		List<Pass> executed = passes.subList(0, executedCount);
+		List<Pass> newPasses = new ArrayList<Pass>(executed);
+		for (Pass pass : planned) {
+			if (indexOf(executed, pass.getType(), pass.getPurpose()) == -1) {
+				newPasses.add(pass);
+			}
+		}
+		passes = newPasses;
+	}
+
+	private static int indexOf(List<Pass> passes, EntityType type, Purpose purpose) {
+		for (int i = 0; i < passes.size(); i++) {
+			if (passes.get(i).getType() == type && passes.get(i).getPurpose() == purpose) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the next pass to execute if it has the given purpose.
+	 *
+	 * @param purpose
+	 *            The purpose of the pass
+	 * @return The pass or null if the next pass has another purpose or all
+	 *         passes have been executed
+	 */
+	Pass nextPass(Purpose purpose) {
+		if (executedCount == passes.size() || passes.get(executedCount).getPurpose() != purpose) {
+			return null;
+		}
+		return passes.get(executedCount++);
+	}
+
+	/**
+	 * @param type
+	 *            The entity type
+	 * @return True if the assembly pass of the type is planned to reuse the
+	 *         entities of the discovery pass
+	 */
+	boolean isReused(EntityType type) {
+		int index = indexOf(passes, type, Purpose.ASSEMBLE);
+		return index != -1 && passes.get(index).isReused();
+	}
+
+	/**
+	 * @param type
+	 *            The entity type
+	 * @param storage
+	 *            Where the needed entities of the type are stored
+	 */
+	void setStorage(EntityType type, Storage storage) {
+		storages.put(type, storage);
+	}
+
+	/**
+	 * @param type
+	 *            The entity type
+	 * @return Where the entities of the type that are needed by ways and
+	 *         relations are stored or null if none are needed or the 
+	 *         storage hasn't been chosen yet
+	 */
+	public Storage getStorage(EntityType type) {
+		return storages.get(type);
+	}
+
+	/**
+	 * @return The passes in the order they are executed
+	 */
+	public List<Pass> getPasses() {
+		return Collections.unmodifiableList(passes);
+	}
+
+	/**
+	 * @return The number of passes that read the file
+	 */
+	public int getFilePassCount() {
+		int count = 0;
+		for (Pass pass : passes) {
+			if (!pass.isReused()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		String str = "";
+		for (int i = 0; i < passes.size(); i++) {
+			str += (i + 1) + ". " + passes.get(i) + "\n";
+		}
+		str += getFilePassCount() + " file passes";
+		for (Map.Entry<EntityType, Storage> entry : storages.entrySet()) {
+			str += "\n" + entry.getKey().toString().toLowerCase() + "s stored in ";
+			str += entry.getValue().toString().toLowerCase();
+		}
+		return str;
+	}
+}
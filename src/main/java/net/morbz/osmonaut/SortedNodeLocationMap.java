@@ -0,0 +1,125 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.util.Arrays;
+
+import net.morbz.osmonaut.osm.LatLon;
+import net.morbz.osmonaut.osm.Node;
+import net.morbz.osmonaut.util.LongArrays;
+
+/**
+ * Stores the locations of nodes in parallel arrays of IDs and locations and
+ * finds them by binary search. Every node requires 16 bytes, no matter how
+ * sparse the IDs are, which makes this the most compact store for extracts.
+ * Nodes in PBF files are sorted by ID, so the arrays only have to be sorted
+ * if the nodes are added out of order. Nodes with tags and nodes whose
+ * location can't be represented exactly are stored as objects in a separate
+ * map. Removed nodes are only marked as empty, the arrays don't shrink.
+ */
+public class SortedNodeLocationMap implements EntityMap<Node> {
+	/**
+	 * The number of bytes that are used for every node.
+	 */
+	public static final int BYTES_PER_NODE = 16;
+
+	private long[] ids = new long[1024];
+	private long[] locations = new long[1024];
+	private int size = 0;
+	private boolean sorted = true;
+	private EntityMap<Node> nodes = new MemoryEntityMap<Node>();
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void add(Node node) {
+		LatLon latlon = node.getLatlon();
+		if(node.getTags().size() > 0 || latlon == null) {
+			nodes.add(node);
+			return;
+		}
+
+		// Check that the location doesn't lose precision
+		long location = NodeLocationMap.encode(latlon);
+		if(location == NodeLocationMap.EMPTY) {
+			nodes.add(node);
+			return;
+		}
+
+		// Grow arrays
+		if(size == ids.length) {
+			int capacity = size + size / 2;
+			ids = Arrays.copyOf(ids, capacity);
+			locations = Arrays.copyOf(locations, capacity);
+		}
+
+		// Detect unsorted input
+		long id = node.getId();
+		if(size > 0 && ids[size - 1] > id) {
+			sorted = false;
+		}
+		ids[size] = id;
+		locations[size] = location;
+		size++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Node get(long id) {
+		int index = indexOf(id);
+		if(index >= 0) {
+			if(locations[index] == NodeLocationMap.EMPTY) {
+				return null;
+			}
+			return new Node(id, null, NodeLocationMap.decode(locations[index]));
+		}
+		return nodes.get(id);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void remove(long id) {
+		int index = indexOf(id);
+		if(index >= 0) {
+			locations[index] = NodeLocationMap.EMPTY;
+		} else {
+			nodes.remove(id);
+		}
+	}
+
+	private int indexOf(long id) {
+		// Ensure that arrays are sorted
+		if(!sorted) {
+			LongArrays.sort(ids, locations, 0, size);
+			sorted = true;
+		}
+		return Arrays.binarySearch(ids, 0, size, id);
+	}
+}
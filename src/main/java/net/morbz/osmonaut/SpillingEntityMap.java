@@ -0,0 +1,372 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.morbz.osmonaut.osm.Entity;
+import net.morbz.osmonaut.util.LongArrays;
+import net.morbz.osmonaut.util.TempFiles;
+import net.morbz.osmonaut.util.VarIntReader;
+import net.morbz.osmonaut.util.VarIntWriter;
+
+/**
+ * Keeps entities encoded with EntityCodec in memory until a memory budget is
+ * reached. Then all entities in memory are sorted by ID and written to a
+ * temporary file as a run of pages. Every run has an index of the first ID
+ * of each page, so a lookup reads at most one page of every run whose ID
+ * range contains the ID. Entities of PBF files are added in ID order, so the
+ * ranges of the runs don't overlap. The most recently read
+ * pages are kept in memory, which makes lookups of entities with close IDs
+ * cheap. Ways that belong to the same relation usually have close IDs. The
+ * file is deleted when the map is closed.
+ */
+public class SpillingEntityMap<T extends Entity> implements EntityMap<T>, Closeable {
+	/**
+	 * The smallest useful memory budget. Smaller budgets lead to runs with
+	 * only a few entities.
+	 */
+	public static final long MIN_MEMORY_BUDGET = 1 << 16;
+
+	private static final int PAGE_SIZE = 1 << 16;
+	private static final int MIN_CACHED_PAGES = 16;
+
+	// Estimated memory that is needed for every entity in memory besides the
+	// encoded entity
+	private static final int ENTITY_OVERHEAD = 32;
+
+	private final long memoryBudget;
+	private FileChannel channel;
+	private long fileLength = 0;
+
+	// Entities in memory
+	private long[] ids = new long[1024];
+	private byte[][] records = new byte[1024][];
+	private int size = 0;
+	private boolean sorted = true;
+	private long memorySize = 0;
+
+	// Entities on disk
+	private List<Run> runs = new ArrayList<Run>();
+	private IdTracker removedIds = new CompressedIdTracker();
+	private Map<Long, byte[]> cachedPages;
+
+	private VarIntWriter writer = new VarIntWriter();
+
+	/**
+	 * @param memoryBudget The number of bytes that may be used for entities
+	 * in memory. A quarter of it is additionally used for cached pages.
+	 * @throws IOException If the temporary file can't be created
+	 */
+	public SpillingEntityMap(long memoryBudget) throws IOException {
+		this.memoryBudget = memoryBudget;
+
+		// Least recently used pages are removed first
+		final long maxCachedPages = Math.max(MIN_CACHED_PAGES, memoryBudget / 4 / PAGE_SIZE);
+		cachedPages = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return size() > maxCachedPages;
+			}
+		};
+
+		channel = TempFiles.openDeletedFile("osmonaut-entities");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void add(T entity) {
+		writer.reset();
+		EntityCodec.write(entity, writer);
+		byte[] record = writer.toByteArray();
+
+		// Grow arrays
+		if(size == ids.length) {
+			int capacity = size + size / 2;
+			ids = Arrays.copyOf(ids, capacity);
+			records = Arrays.copyOf(records, capacity);
+		}
+
+		// Detect unsorted input
+		long id = entity.getId();
+		if(size > 0 && ids[size - 1] > id) {
+			sorted = false;
+		}
+		ids[size] = id;
+		records[size] = record;
+		size++;
+
+		// Write entities to disk when the budget is exceeded
+		memorySize += record.length + ENTITY_OVERHEAD;
+		if(memorySize > memoryBudget) {
+			spill();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public T get(long id) {
+		// Look in memory
+		int index = indexOf(id);
+		if(index >= 0) {
+			if(records[index] == null) {
+				return null;
+			}
+			return (T)EntityCodec.decode(records[index]);
+		}
+
+		// Look in the runs on disk
+		if(removedIds.get(id)) {
+			return null;
+		}
+		for(int i = 0; i < runs.size(); i++) {
+			T entity = get(i, id);
+			if(entity != null) {
+				return entity;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void remove(long id) {
+		int index = indexOf(id);
+		if(index >= 0) {
+			if(records[index] != null) {
+				memorySize -= records[index].length + ENTITY_OVERHEAD;
+				records[index] = null;
+			}
+		} else if(!runs.isEmpty()) {
+			// Entities on disk are only marked as removed
+			removedIds.set(id);
+		}
+	}
+
+	/**
+	 * Closes the file and frees the entities in memory. The map can't be 
+	 * used afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		ids = new long[0];
+		records = new byte[0][];
+		size = 0;
+		cachedPages.clear();
+		channel.close();
+	}
+
+	private int indexOf(long id) {
+		// Ensure that entities are sorted
+		if(!sorted) {
+			sort();
+		}
+		return Arrays.binarySearch(ids, 0, size, id);
+	}
+
+	private void sort() {
+		// Sort the IDs together with the original positions of the records,
+		// then move the records to their new positions
+		long[] positions = new long[size];
+		for(int i = 0; i < size; i++) {
+			positions[i] = i;
+		}
+		LongArrays.sort(ids, positions, 0, size);
+		byte[][] sortedRecords = new byte[records.length][];
+		for(int i = 0; i < size; i++) {
+			sortedRecords[i] = records[(int)positions[i]];
+		}
+		records = sortedRecords;
+		sorted = true;
+	}
+
+	/**
+	 * Writes all entities in memory to a new run. Every page starts with the
+	 * number of entities and the delta encoded IDs and lengths of their
+	 * records, which are followed by the records.
+	 */
+	private void spill() {
+		if(!sorted) {
+			sort();
+		}
+
+		Run run = new Run();
+		VarIntWriter header = new VarIntWriter();
+		VarIntWriter body = new VarIntWriter(PAGE_SIZE);
+		int count = 0;
+		long lastId = 0;
+		for(int i = 0; i < size; i++) {
+			if(records[i] == null) {
+				continue;
+			}
+			if(count == 0) {
+				run.addPage(ids[i], fileLength);
+			}
+			header.writeSignedVarLong(ids[i] - lastId);
+			header.writeVarLong(records[i].length);
+			body.writeBytes(records[i], records[i].length);
+			lastId = ids[i];
+			run.lastId = ids[i];
+			count++;
+
+			// Write page
+			if(body.size() >= PAGE_SIZE) {
+				writePage(count, header, body);
+				header.reset();
+				body.reset();
+				count = 0;
+				lastId = 0;
+			}
+		}
+		if(count > 0) {
+			writePage(count, header, body);
+		}
+		run.close(fileLength);
+		runs.add(run);
+
+		// Clear memory
+		ids = new long[1024];
+		records = new byte[1024][];
+		size = 0;
+		memorySize = 0;
+	}
+
+	private void writePage(int count, VarIntWriter header, VarIntWriter body) {
+		VarIntWriter page = new VarIntWriter(header.size() + body.size() + 5);
+		page.writeVarLong(count);
+		page.writeBytes(header.getBuffer(), header.size());
+		page.writeBytes(body.getBuffer(), body.size());
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(page.getBuffer(), 0, page.size());
+			while(buffer.hasRemaining()) {
+				fileLength += channel.write(buffer, fileLength);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to write entity file.", e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private T get(int runIndex, long id) {
+		// Find the page that may contain the ID
+		Run run = runs.get(runIndex);
+		if(run.pageCount == 0 || id < run.firstIds[0] || id > run.lastId) {
+			return null;
+		}
+		int pageIndex = Arrays.binarySearch(run.firstIds, 0, run.pageCount, id);
+		if(pageIndex < 0) {
+			pageIndex = -pageIndex - 2;
+			if(pageIndex < 0) {
+				return null;
+			}
+		}
+		byte[] page = getPage(runIndex, pageIndex);
+
+		// Find the record in the page
+		VarIntReader reader = new VarIntReader(page, 0);
+		int count = reader.readVarInt();
+		long currentId = 0;
+		int offset = 0;
+		int recordOffset = -1;
+		for(int i = 0; i < count; i++) {
+			currentId += reader.readSignedVarLong();
+			int length = reader.readVarInt();
+			if(currentId == id) {
+				recordOffset = offset;
+			}
+			offset += length;
+		}
+		if(recordOffset == -1) {
+			return null;
+		}
+		return (T)EntityCodec.read(new VarIntReader(page, reader.getPosition() + recordOffset));
+	}
+
+	private byte[] getPage(int runIndex, int pageIndex) {
+		Long key = ((long)runIndex << 32) | pageIndex;
+		byte[] page = cachedPages.get(key);
+		if(page == null) {
+			Run run = runs.get(runIndex);
+			long start = run.offsets[pageIndex];
+			page = new byte[(int)(run.offsets[pageIndex + 1] - start)];
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(page);
+				while(buffer.hasRemaining()) {
+					if(channel.read(buffer, start + buffer.position()) == -1) {
+						throw new IOException("Unexpected end of entity file.");
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to read entity file.", e);
+			}
+			cachedPages.put(key, page);
+		}
+		return page;
+	}
+
+	/**
+	 * The index of the pages of a sorted run.
+	 */
+	private static class Run {
+		private long[] firstIds = new long[16];
+		private long[] offsets = new long[17];
+		private int pageCount = 0;
+		private long lastId;
+
+		void addPage(long firstId, long offset) {
+			if(pageCount == firstIds.length) {
+				firstIds = Arrays.copyOf(firstIds, pageCount * 2);
+				offsets = Arrays.copyOf(offsets, pageCount * 2 + 1);
+			}
+			firstIds[pageCount] = firstId;
+			offsets[pageCount] = offset;
+			pageCount++;
+		}
+
+		/**
+		 * @param endOffset The offset of the end of the last page
+		 */
+		void close(long endOffset) {
+			offsets[pageCount] = endOffset;
+		}
+	}
+}
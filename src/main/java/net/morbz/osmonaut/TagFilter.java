@@ -0,0 +1,123 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.morbz.osmonaut.osm.Tags;
+
+/**
+ * A declarative filter on the tags of entities. An entity matches the filter
+ * if it has at least one of the keys or at least one of the key/value pairs.
+ * A filter without keys doesn't match any entity.
+ *
+ * Unlike IOsmonautReceiver.needsEntity() this filter can be evaluated by the
+ * decoder before the tags of an entity are built, so that entities that
+ * don't match are rejected early.
+ *
+ * @author MorbZ
+ */
+public class TagFilter {
+	private Set<String> keys = new LinkedHashSet<String>();
+	private Map<String, Set<String>> keyValues = new LinkedHashMap<String, Set<String>>();
+
+	/**
+	 * Entities that have a tag with this key match the filter.
+	 *
+	 * @param key
+	 *            The key of the tag
+	 * @return This filter
+	 */
+	public TagFilter addKey(String key) {
+		keys.add(key);
+		return this;
+	}
+
+	/**
+	 * Entities that have a tag with this key and value match the filter.
+	 *
+	 * @param key
+	 *            The key of the tag
+	 * @param value
+	 *            The value of the tag
+	 * @return This filter
+	 */
+	public TagFilter addKeyValue(String key, String value) {
+		Set<String> values = keyValues.get(key);
+		if (values == null) {
+			values = new HashSet<String>();
+			keyValues.put(key, values);
+		}
+		values.add(value);
+		return this;
+	}
+
+	/**
+	 * @return The keys of which any value matches the filter
+	 */
+	public Set<String> getKeys() {
+		return Collections.unmodifiableSet(keys);
+	}
+
+	/**
+	 * @return The keys of which only certain values match the filter, mapped
+	 *         to these values
+	 */
+	public Map<String, Set<String>> getKeyValues() {
+		return Collections.unmodifiableMap(keyValues);
+	}
+
+	/**
+	 * @return True if this filter has no keys, so that it matches nothing
+	 */
+	public boolean isEmpty() {
+		return keys.isEmpty() && keyValues.isEmpty();
+	}
+
+	/**
+	 * @param tags
+	 *            The tags of an entity
+	 * @return True if the tags match this filter
+	 */
+	public boolean matches(Tags tags) {
+		for (String key : keys) {
+			if (tags.hasKey(key)) {
+				return true;
+			}
+		}
+		for (Map.Entry<String, Set<String>> entry : keyValues.entrySet()) {
+			String value = tags.get(entry.getKey());
+			if (value != null && entry.getValue().contains(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
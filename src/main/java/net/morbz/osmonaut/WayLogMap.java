@@ -0,0 +1,201 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import net.morbz.osmonaut.osm.Way;
+import net.morbz.osmonaut.util.LongArrays;
+import net.morbz.osmonaut.util.TempFiles;
+import net.morbz.osmonaut.util.VarIntReader;
+import net.morbz.osmonaut.util.VarIntWriter;
+
+/**
+ * Stores ways in a memory mapped temporary file. Ways are appended
+ * to the file as compact binary records and found by binary search in an
+ * index of IDs and file offsets, so a lookup reads a single record instead of
+ * walking a B-tree. The records are encoded with EntityCodec. Removed ways
+ * are only removed from the index, the file doesn't shrink. The file is
+ * deleted when the map is closed.
+ */
+public class WayLogMap implements EntityMap<Way>, Closeable {
+	private static final int REGION_BITS = 30;
+	private static final long REGION_SIZE = 1L << REGION_BITS;
+
+	private FileChannel channel;
+	private MappedByteBuffer[] regions = new MappedByteBuffer[0];
+	private long length = 0;
+
+	private long[] ids = new long[1024];
+	private long[] offsets = new long[1024];
+	private int size = 0;
+	private boolean sorted = true;
+
+	private VarIntWriter writer = new VarIntWriter();
+	private byte[] lengthBuffer = new byte[4];
+	private byte[] readBuffer = new byte[64];
+
+	/**
+	 * @throws IOException If the temporary file can't be created
+	 */
+	public WayLogMap() throws IOException {
+		channel = TempFiles.openDeletedFile("osmonaut-ways");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void add(Way way) {
+		// Encode way
+		writer.reset();
+		EntityCodec.write(way, writer);
+		int recordLength = writer.size();
+		for(int i = 0; i < 4; i++) {
+			lengthBuffer[i] = (byte)(recordLength >>> (i * 8));
+		}
+
+		// Grow index
+		if(size == ids.length) {
+			int capacity = size + size / 2;
+			ids = Arrays.copyOf(ids, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+		}
+
+		// Detect unsorted input
+		long id = way.getId();
+		if(size > 0 && ids[size - 1] > id) {
+			sorted = false;
+		}
+		ids[size] = id;
+		offsets[size] = length;
+		size++;
+
+		write(length, lengthBuffer, 4);
+		write(length + 4, writer.getBuffer(), recordLength);
+		length += 4 + recordLength;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Way get(long id) {
+		int index = indexOf(id);
+		if(index < 0 || offsets[index] == -1) {
+			return null;
+		}
+
+		// Read record
+		long offset = offsets[index];
+		read(offset, lengthBuffer, 4);
+		int recordLength = 0;
+		for(int i = 0; i < 4; i++) {
+			recordLength |= (lengthBuffer[i] & 0xFF) << (i * 8);
+		}
+		if(recordLength > readBuffer.length) {
+			readBuffer = new byte[Math.max(recordLength, readBuffer.length * 2)];
+		}
+		read(offset + 4, readBuffer, recordLength);
+		return (Way)EntityCodec.read(new VarIntReader(readBuffer, 0));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void remove(long id) {
+		int index = indexOf(id);
+		if(index >= 0) {
+			offsets[index] = -1;
+		}
+	}
+
+	private int indexOf(long id) {
+		// Ensure that the index is sorted
+		if(!sorted) {
+			LongArrays.sort(ids, offsets, 0, size);
+			sorted = true;
+		}
+		return Arrays.binarySearch(ids, 0, size, id);
+	}
+
+	private void write(long position, byte[] bytes, int count) {
+		int written = 0;
+		while(written < count) {
+			MappedByteBuffer region = getRegion(position + written, true);
+			int regionOffset = (int)((position + written) & (REGION_SIZE - 1));
+			int chunk = (int)Math.min(count - written, REGION_SIZE - regionOffset);
+			region.position(regionOffset);
+			region.put(bytes, written, chunk);
+			written += chunk;
+		}
+	}
+
+	private void read(long position, byte[] bytes, int count) {
+		int read = 0;
+		while(read < count) {
+			MappedByteBuffer region = getRegion(position + read, false);
+			int regionOffset = (int)((position + read) & (REGION_SIZE - 1));
+			int chunk = (int)Math.min(count - read, REGION_SIZE - regionOffset);
+			region.position(regionOffset);
+			region.get(bytes, read, chunk);
+			read += chunk;
+		}
+	}
+
+	/**
+	 * Closes the file. The regions are released when they are garbage 
+	 * collected. The map can't be used afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		regions = new MappedByteBuffer[0];
+		channel.close();
+	}
+
+	private MappedByteBuffer getRegion(long position, boolean create) {
+		int index = (int)(position >> REGION_BITS);
+		if(index >= regions.length) {
+			regions = Arrays.copyOf(regions, index + 1);
+		}
+		MappedByteBuffer region = regions[index];
+		if(region == null && create) {
+			// Mapping a region beyond the end of the file grows the file
+			// without allocating disk space
+			try {
+				region = channel.map(FileChannel.MapMode.READ_WRITE, index * REGION_SIZE, REGION_SIZE);
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to map way file.", e);
+			}
+			regions[index] = region;
+		}
+		return region;
+	}
+}
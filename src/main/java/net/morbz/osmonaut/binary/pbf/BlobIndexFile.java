@@ -0,0 +1,131 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Stores the blob index of a PBF file in a sidecar file, so that repeated 
+ * scans of the same file can go straight to the relevant blobs. The index 
+ * contains the file size and modification time of the PBF file and is only 
+ * used as long as they match.
+ */
+public class BlobIndexFile {
+	private static final int magic = 0x4f4e4958; // "ONIX"
+	private static final int version = 1;
+
+	private File indexFile;
+	private long fileSize;
+	private long lastModified;
+
+	/**
+	 * @param indexFile The sidecar file that stores the index
+	 * @param pbfFile The indexed PBF file
+	 */
+	public BlobIndexFile(File indexFile, File pbfFile) {
+		this.indexFile = indexFile;
+		this.fileSize = pbfFile.length();
+		this.lastModified = pbfFile.lastModified();
+	}
+
+	/**
+	 * Loads the index into the given indexers. The indexers are left empty if
+	 * the index doesn't exist, is invalid or doesn't match the PBF file.
+	 * 
+	 * @param nodeIndexer The indexer for blobs that contain nodes
+	 * @param wayIndexer The indexer for blobs that contain ways
+	 * @param relationIndexer The indexer for blobs that contain relations
+	 * @return True if the index has been loaded
+	 */
+	public boolean load(RawBlobIndexer nodeIndexer, RawBlobIndexer wayIndexer, 
+			RawBlobIndexer relationIndexer) {
+		if(!indexFile.isFile()) {
+			return false;
+		}
+
+		try(DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(indexFile)))) {
+			// Check header
+			if(in.readInt() != magic || in.readInt() != version) {
+				return false;
+			}
+			if(in.readLong() != fileSize || in.readLong() != lastModified) {
+				return false;
+			}
+
+			// Read indexes
+			nodeIndexer.read(in);
+			wayIndexer.read(in);
+			relationIndexer.read(in);
+			return true;
+		} catch (IOException e) {
+			nodeIndexer.clear();
+			wayIndexer.clear();
+			relationIndexer.clear();
+			return false;
+		}
+	}
+
+	/**
+	 * Saves the index of the given indexers.
+	 * 
+	 * @param nodeIndexer The indexer for blobs that contain nodes
+	 * @param wayIndexer The indexer for blobs that contain ways
+	 * @param relationIndexer The indexer for blobs that contain relations
+	 * @throws IOException If the index can't be written
+	 */
+	public void save(RawBlobIndexer nodeIndexer, RawBlobIndexer wayIndexer, 
+			RawBlobIndexer relationIndexer) throws IOException {
+		// Write to a temporary file first so that an interrupted write never
+		// leaves an incomplete index
+		File tempFile = new File(indexFile.getPath() + ".tmp");
+		try(DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+			out.writeInt(magic);
+			out.writeInt(version);
+			out.writeLong(fileSize);
+			out.writeLong(lastModified);
+
+			nodeIndexer.write(out);
+			wayIndexer.write(out);
+			relationIndexer.write(out);
+		}
+
+		// Replace old index
+		if(indexFile.exists() && !indexFile.delete()) {
+			throw new IOException("Unable to replace blob index " + indexFile + ".");
+		}
+		if(!tempFile.renameTo(indexFile)) {
+			throw new IOException("Unable to write blob index " + indexFile + ".");
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses zlib compressed blobs. Keeps its Inflater and its buffers 
+ * between blobs, so that decompressing a blob doesn't allocate anything once
+ * the buffers have grown to the largest blob size. An instance must only be 
+ * used by one thread at a time.
+ */
+public class BlobInflater {
+	private Inflater inflater = new Inflater();
+	private byte[] inputBuffer = new byte[0];
+	private byte[] outputBuffer = new byte[0];
+
+	/**
+	 * Returns a buffer that can hold the compressed data of a blob.
+	 * 
+	 * @param size The minimum size of the buffer
+	 * @return The buffer, it's only valid until the next call
+	 */
+	public byte[] getInputBuffer(int size) {
+		if(inputBuffer.length < size) {
+			inputBuffer = new byte[size];
+		}
+		return inputBuffer;
+	}
+
+	/**
+	 * Decompresses zlib data.
+	 * 
+	 * @param data The array that holds the compressed data
+	 * @param offset The offset of the compressed data in the array
+	 * @param length The length of the compressed data
+	 * @param rawSize The size of the decompressed data
+	 * @return The buffer that holds the decompressed data from index 0 to 
+	 * rawSize. It's only valid until the next call.
+	 */
+	public byte[] inflate(byte[] data, int offset, int length, int rawSize) {
+		if(outputBuffer.length < rawSize) {
+			outputBuffer = new byte[rawSize];
+		}
+
+		inflater.reset();
+		inflater.setInput(data, offset, length);
+		try {
+			inflater.inflate(outputBuffer, 0, rawSize);
+		} catch (DataFormatException e) {
+			throw new RuntimeException("Unable to decompress PBF blob.", e);
+		}
+		if (!inflater.finished()) {
+			throw new RuntimeException("PBF blob contains incomplete compressed data.");
+		}
+		return outputBuffer;
+	}
+
+	/**
+	 * Releases the native resources of the Inflater. The object can't be used
+	 * afterwards.
+	 */
+	public void close() {
+		inflater.end();
+	}
+}
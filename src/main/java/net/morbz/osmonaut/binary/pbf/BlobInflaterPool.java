@@ -0,0 +1,76 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A pool of blob inflaters that is shared by the decoding workers. Each 
+ * worker takes an inflater for the duration of a blob, so the pool never grows
+ * larger than the number of workers.
+ */
+public class BlobInflaterPool {
+	private Queue<BlobInflater> idleInflaters = new ConcurrentLinkedQueue<BlobInflater>();
+	private List<BlobInflater> inflaters = new ArrayList<BlobInflater>();
+
+	/**
+	 * @return An inflater that is not used by any other thread
+	 */
+	public BlobInflater acquire() {
+		BlobInflater inflater = idleInflaters.poll();
+		if(inflater == null) {
+			inflater = new BlobInflater();
+			synchronized(inflaters) {
+				inflaters.add(inflater);
+			}
+		}
+		return inflater;
+	}
+
+	/**
+	 * Returns an inflater to the pool.
+	 * 
+	 * @param inflater The inflater that has been obtained with acquire()
+	 */
+	public void release(BlobInflater inflater) {
+		idleInflaters.add(inflater);
+	}
+
+	/**
+	 * Releases the native resources of all inflaters.
+	 */
+	public void close() {
+		synchronized(inflaters) {
+			for(BlobInflater inflater : inflaters) {
+				inflater.close();
+			}
+			inflaters.clear();
+		}
+		idleInflaters.clear();
+	}
+}
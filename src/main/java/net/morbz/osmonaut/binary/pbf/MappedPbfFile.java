@@ -0,0 +1,126 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Maps the PBF file into memory so that reads return slices of the mapping 
+ * instead of copies. As a single mapping is limited to 2 GB the file is mapped
+ * in chunks. Each chunk overlaps the next one by the maximum blob size so that
+ * every blob can be returned as a slice of a single chunk.
+ */
+public class MappedPbfFile extends PbfFile {
+	private static final long chunkSize = 1L << 30; // 1 GB
+	private static final long chunkOverlap = 64L << 20; // 64 MB
+
+	private RandomAccessFile file;
+	private MappedByteBuffer[] chunks;
+	private long size;
+
+	/**
+	 * @param file The PBF file
+	 * @throws IOException If the file can't be opened or mapped
+	 */
+	public MappedPbfFile(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		this.size = this.file.length();
+
+		// Map chunks
+		FileChannel channel = this.file.getChannel();
+		int chunkCount = (int)((size + chunkSize - 1) / chunkSize);
+		chunks = new MappedByteBuffer[chunkCount];
+		for(int i = 0; i < chunkCount; i++) {
+			long chunkStart = i * chunkSize;
+			long chunkLength = Math.min(size - chunkStart, chunkSize + chunkOverlap);
+			chunks[i] = channel.map(MapMode.READ_ONLY, chunkStart, chunkLength);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ByteBuffer read(long position, int size, byte[] buffer) throws IOException {
+		if(position < 0 || position + size > this.size) {
+			throw new EOFException();
+		}
+
+		// Get chunk
+		int chunkId = (int)(position / chunkSize);
+		int chunkPosition = (int)(position - chunkId * chunkSize);
+		ByteBuffer chunk = chunks[chunkId].duplicate();
+
+		// Slice if the range is inside of the chunk
+		if(chunkPosition + size <= chunk.capacity()) {
+			chunk.position(chunkPosition);
+			chunk.limit(chunkPosition + size);
+			return chunk.slice();
+		}
+
+		// Copy the range from multiple chunks
+		ByteBuffer data;
+		if(buffer != null && buffer.length >= size) {
+			data = ByteBuffer.wrap(buffer, 0, size);
+		} else {
+			data = ByteBuffer.allocate(size);
+		}
+		while(data.hasRemaining()) {
+			chunk = chunks[chunkId].duplicate();
+			chunk.position(chunkPosition);
+			chunk.limit(Math.min(chunk.capacity(), chunkPosition + data.remaining()));
+			data.put(chunk);
+
+			chunkId++;
+			chunkPosition = (int)chunkOverlap;
+		}
+		data.flip();
+		return data;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void close() throws IOException {
+		chunks = null;
+		file.close();
+	}
+}
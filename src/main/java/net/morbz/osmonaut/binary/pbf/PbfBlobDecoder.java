@@ -3,29 +3,20 @@
 package net.morbz.osmonaut.binary.pbf;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
 
 import net.morbz.osmonaut.EntityFilter;
-import net.morbz.osmonaut.binary.pbf.proto.Fileformat.Blob;
+import net.morbz.osmonaut.IdTracker;
 import net.morbz.osmonaut.binary.pbf.proto.Osmformat;
-import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock;
-import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup;
-import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup.DenseNodes;
-import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup.Node;
-import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup.Relation;
-import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup.Relation.MemberType;
-import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup.Way;
 import net.morbz.osmonaut.osm.Entity;
 import net.morbz.osmonaut.osm.EntityType;
 import net.morbz.osmonaut.osm.LatLon;
-import net.morbz.osmonaut.osm.RelationMember;
 import net.morbz.osmonaut.osm.Tags;
 
 /**
@@ -37,60 +28,135 @@ import net.morbz.osmonaut.osm.Tags;
  * @author Merten Peetz
  */
 public class PbfBlobDecoder implements Runnable {
-	private String blobType;
-	private byte[] rawBlob;
+	// Field numbers of the Blob message
+	private static final int BLOB_RAW = 1;
+	private static final int BLOB_RAW_SIZE = 2;
+	private static final int BLOB_ZLIB_DATA = 3;
+
+	private PbfRawBlob rawBlob;
+	private BlobInflaterPool inflaterPool;
+	private BlobInflater inflater;
 	private PbfBlobDecoderListener listener;
 	private List<Entity> decodedEntities;
 	private EntityType entityType;
 	private PbfFieldDecoder fieldDecoder;
+	private PbfTagFilter tagFilter;
+	private PbfTagFilter.BlockFilter blockFilter;
+	private IdTracker neededIds;
 	private EntityFilter containedTypes = new EntityFilter(false, false, false);
 
 	/**
 	 * Creates a new instance.
 	 * 
-	 * @param blobType
-	 *            The type of blob.
 	 * @param rawBlob
-	 *            The raw data of the blob.
+	 *            The raw blob. Its data is read on the decoding thread if it
+	 *            hasn't been read yet.
+	 * @param inflaterPool
+	 *            The pool of inflaters for decompressing the blob.
 	 * @param listener
 	 *            The listener for receiving decoding results.
 	 * @param type
 	 *            The entity of which entities will be returned.
 	 */
-	public PbfBlobDecoder(String blobType, byte[] rawBlob, PbfBlobDecoderListener listener, EntityType type) {
-		this.blobType = blobType;
+	public PbfBlobDecoder(PbfRawBlob rawBlob, BlobInflaterPool inflaterPool, PbfBlobDecoderListener listener,
+			EntityType type) {
+		this(rawBlob, inflaterPool, listener, type, null, null);
+	}
+
+	/**
+	 * Creates a new instance that only returns the entities which match the
+	 * tag filter or are needed.
+	 * 
+	 * @param rawBlob
+	 *            The raw blob. Its data is read on the decoding thread if it
+	 *            hasn't been read yet.
+	 * @param inflaterPool
+	 *            The pool of inflaters for decompressing the blob.
+	 * @param listener
+	 *            The listener for receiving decoding results.
+	 * @param type
+	 *            The entity of which entities will be returned.
+	 * @param tagFilter
+	 *            The filter that entities have to match. May be null to return
+	 *            all entities.
+	 * @param neededIds
+	 *            The IDs of entities that are returned even if they don't 
+	 *            match the filter. Must not be modified during decoding. May
+	 *            be null.
+	 */
+	public PbfBlobDecoder(PbfRawBlob rawBlob, BlobInflaterPool inflaterPool, PbfBlobDecoderListener listener,
+			EntityType type, PbfTagFilter tagFilter, IdTracker neededIds) {
 		this.rawBlob = rawBlob;
+		this.inflaterPool = inflaterPool;
 		this.listener = listener;
 		this.entityType = type;
+		this.tagFilter = tagFilter;
+		this.neededIds = neededIds;
 	}
 
-	private byte[] readBlobContent() throws IOException {
-		Blob blob = Blob.parseFrom(rawBlob);
-		byte[] blobData;
-
-		if (blob.hasRaw()) {
-			blobData = blob.getRaw().toByteArray();
-		} else if (blob.hasZlibData()) {
-			Inflater inflater = new Inflater();
-			inflater.setInput(blob.getZlibData().toByteArray());
-			blobData = new byte[blob.getRawSize()];
-			try {
-				inflater.inflate(blobData);
-			} catch (DataFormatException e) {
-				throw new RuntimeException("Unable to decompress PBF blob.", e);
+	private ByteBuffer readBlobContent() throws IOException {
+		// Get the blob data as an array. It's read into the reusable input
+		// buffer unless it's a slice of a memory mapped file, which has to be
+		// copied as the Inflater can only read from arrays.
+		int length = rawBlob.getSize();
+		ByteBuffer data = rawBlob.getData(inflater.getInputBuffer(length));
+		byte[] array;
+		int offset;
+		if (data.hasArray()) {
+			array = data.array();
+			offset = data.arrayOffset() + data.position();
+		} else {
+			array = inflater.getInputBuffer(length);
+			data.duplicate().get(array, 0, length);
+			offset = 0;
+		}
+
+		// Read the blob message by hand, so that the compressed data can be
+		// inflated straight from the array instead of being copied into a
+		// ByteString first.
+		CodedInputStream input = CodedInputStream.newInstance(array, offset, length);
+		int rawOffset = -1;
+		int rawLength = 0;
+		int zlibOffset = -1;
+		int zlibLength = 0;
+		int rawSize = 0;
+		while (true) {
+			int tag = input.readTag();
+			if (tag == 0) {
+				break;
 			}
-			if (!inflater.finished()) {
-				throw new RuntimeException("PBF blob contains incomplete compressed data.");
+			switch (WireFormat.getTagFieldNumber(tag)) {
+			case BLOB_RAW:
+				rawLength = input.readRawVarint32();
+				rawOffset = offset + input.getTotalBytesRead();
+				input.skipRawBytes(rawLength);
+				break;
+			case BLOB_RAW_SIZE:
+				rawSize = input.readInt32();
+				break;
+			case BLOB_ZLIB_DATA:
+				zlibLength = input.readRawVarint32();
+				zlibOffset = offset + input.getTotalBytesRead();
+				input.skipRawBytes(zlibLength);
+				break;
+			default:
+				input.skipField(tag);
+				break;
 			}
+		}
+
+		if (rawOffset != -1) {
+			return ByteBuffer.wrap(array, rawOffset, rawLength);
+		} else if (zlibOffset != -1) {
+			byte[] blobData = inflater.inflate(array, zlibOffset, zlibLength, rawSize);
+			return ByteBuffer.wrap(blobData, 0, rawSize);
 		} else {
 			throw new RuntimeException("PBF blob uses unsupported compression, only raw or zlib may be used.");
 		}
-
-		return blobData;
 	}
 
-	private void processOsmHeader(byte[] data) throws InvalidProtocolBufferException {
-		Osmformat.HeaderBlock header = Osmformat.HeaderBlock.parseFrom(data);
+	private void processOsmHeader(ByteBuffer data) throws IOException {
+		Osmformat.HeaderBlock header = Osmformat.HeaderBlock.parseFrom(CodedInputStream.newInstance(data));
 
 		// Build the list of active and unsupported features in the file.
 		List<String> supportedFeatures = Arrays.asList("OsmSchema-V0.6", "DenseNodes");
@@ -112,209 +178,113 @@ public class PbfBlobDecoder implements Runnable {
 		}
 	}
 
-	private Tags buildTags(List<Integer> keys, List<Integer> values) {
-		// Ensure parallel lists are of equal size.
-		if (keys.size() != values.size()) {
-			throw new RuntimeException("Number of tag keys (" + keys.size() + ") and tag values ("
-					+ values.size() + ") don't match");
+	private boolean isRejected(long id, int[] keys, int[] values, int tagCount) {
+		if (tagFilter == null) {
+			return false;
 		}
 
-		Tags tags = new Tags();
-		Iterator<Integer> keyIterator = keys.iterator();
-		Iterator<Integer> valueIterator = values.iterator();
-		while (keyIterator.hasNext()) {
-			String key = fieldDecoder.decodeString(keyIterator.next());
-			String value = fieldDecoder.decodeString(valueIterator.next());
-			tags.set(key, value);
+		// The filter is resolved on the first entity, so that blocks without
+		// entities of the requested type don't have to be resolved at all
+		if (blockFilter == null) {
+			blockFilter = tagFilter.resolve(fieldDecoder);
 		}
-		return tags;
+		if (blockFilter.matches(keys, values, tagCount)) {
+			return false;
+		}
+		return neededIds == null || !neededIds.get(id);
 	}
 
-	private void processNodes(List<Node> nodes) {
-		for (Node node : nodes) {
-			// Create node
-			long id = node.getId();
-			Tags tags = buildTags(node.getKeysList(), node.getValsList());
-			LatLon latlon = new LatLon(node.getLat(), node.getLon());
-			net.morbz.osmonaut.osm.Node osmNode = new net.morbz.osmonaut.osm.Node(id, tags, latlon);
-
-			// Add to results
-			decodedEntities.add(osmNode);
+	private Tags buildTags(int[] keys, int[] values, int tagCount) {
+		Tags tags = new Tags();
+		for (int i = 0; i < tagCount; i++) {
+			int keyId = fieldDecoder.decodeKey(keys[i]);
+			String value = fieldDecoder.decodeValue(values[i]);
+			tags.set(keyId, value);
 		}
+		return tags;
 	}
 
-	private void processNodes(DenseNodes nodes) {
-		List<Long> idList = nodes.getIdList();
-		List<Long> latList = nodes.getLatList();
-		List<Long> lonList = nodes.getLonList();
-
-		// Ensure parallel lists are of equal size.
-		if ((idList.size() != latList.size()) || (idList.size() != lonList.size())) {
-			throw new RuntimeException("Number of ids (" + idList.size() + "), latitudes (" + latList.size()
-			+ "), and longitudes (" + lonList.size() + ") don't match");
+	private void processNode(long id, long latitude, long longitude, int[] keys, int[] values, int tagCount) {
+		if (isRejected(id, keys, values, tagCount)) {
+			return;
 		}
 
-		Iterator<Integer> keysValuesIterator = nodes.getKeysValsList().iterator();
-		long nodeId = 0;
-		long latitude = 0;
-		long longitude = 0;
-		for (int i = 0; i < idList.size(); i++) {
-			// Delta decode node fields.
-			nodeId += idList.get(i);
-			latitude += latList.get(i);
-			longitude += lonList.get(i);
-
-			// Build the tags. The key and value string indexes are sequential
-			// in the same PBF array. Each set of tags is delimited by an index
-			// with a value of 0.
-			Tags tags = new Tags();
-			while (keysValuesIterator.hasNext()) {
-				int keyIndex = keysValuesIterator.next();
-				if (keyIndex == 0) {
-					break;
-				}
-				if (!keysValuesIterator.hasNext()) {
-					throw new RuntimeException(
-							"The PBF DenseInfo keys/values list contains a key with no corresponding value.");
-				}
-				int valueIndex = keysValuesIterator.next();
-
-				tags.set(fieldDecoder.decodeString(keyIndex), fieldDecoder.decodeString(valueIndex));
-			}
-
-			// Create node
-			LatLon latlon = new LatLon(
-					fieldDecoder.decodeLatitude(latitude), 
-					fieldDecoder.decodeLongitude(longitude));
-			net.morbz.osmonaut.osm.Node osmNode = new net.morbz.osmonaut.osm.Node(nodeId, tags, latlon);
+		// Create node
+		Tags tags = buildTags(keys, values, tagCount);
+		LatLon latlon = new LatLon(
+				fieldDecoder.decodeLatitude(latitude), 
+				fieldDecoder.decodeLongitude(longitude));
+		net.morbz.osmonaut.osm.Node osmNode = new net.morbz.osmonaut.osm.Node(id, tags, latlon);
 
-			// Add to results
-			decodedEntities.add(osmNode);
-		}
+		// Add to results
+		decodedEntities.add(osmNode);
 	}
 
-	private void processWays(List<Way> ways) {
-		for (Way way : ways) {
-			// Build up the list of way nodes for the way. The node ids are
-			// delta encoded meaning that each id is stored as a delta against
-			// the previous one.
-			long nodeId = 0;
-			List<net.morbz.osmonaut.osm.Node> wayNodes = new ArrayList<net.morbz.osmonaut.osm.Node>();
-			for (long nodeIdOffset : way.getRefsList()) {
-				nodeId += nodeIdOffset;
-				wayNodes.add(new net.morbz.osmonaut.osm.Node(nodeId, null, null));
-			}
+	private void processWay(long id, int[] keys, int[] values, int tagCount, long[] nodeIds) {
+		if (isRejected(id, keys, values, tagCount)) {
+			return;
+		}
 
-			// Create way
-			long id = way.getId();
-			Tags tags = buildTags(way.getKeysList(), way.getValsList());
-			net.morbz.osmonaut.osm.Way osmWay = new net.morbz.osmonaut.osm.Way(id, tags, wayNodes);
+		// Create way. The node IDs array is owned by the way, the nodes are
+		// resolved later on.
+		Tags tags = buildTags(keys, values, tagCount);
+		net.morbz.osmonaut.osm.Way osmWay = new net.morbz.osmonaut.osm.Way(id, tags, nodeIds);
 
-			// Add to results
-			decodedEntities.add(osmWay);
-		}
+		// Add to results
+		decodedEntities.add(osmWay);
 	}
 
-	private void processRelations(List<Relation> relations) {
-		for (Relation relation : relations) {
-			List<Long> memberIds = relation.getMemidsList();
-			List<Integer> memberRoles = relation.getRolesSidList();
-			List<MemberType> memberTypes = relation.getTypesList();
-
-			// Ensure parallel lists are of equal size.
-			if ((memberIds.size() != memberRoles.size()) || (memberIds.size() != memberTypes.size())) {
-				throw new RuntimeException("Number of member ids (" + memberIds.size() + "), member roles ("
-						+ memberRoles.size() + "), and member types (" + memberTypes.size() + ") don't match");
-			}
+	private void processRelation(long id, int[] keys, int[] values, int tagCount, long[] memberIds, 
+			byte[] memberTypes, int[] memberRoles) {
+		if (isRejected(id, keys, values, tagCount)) {
+			return;
+		}
 
-			Iterator<Long> memberIdIterator = memberIds.iterator();
-			Iterator<Integer> memberRoleIterator = memberRoles.iterator();
-			Iterator<MemberType> memberTypeIterator = memberTypes.iterator();
-
-			// Build up the list of relation members for the way. The member ids are
-			// delta encoded meaning that each id is stored as a delta against
-			// the previous one.
-			long memberId = 0;
-			List<RelationMember> members = new ArrayList<RelationMember>();
-			boolean isIncomplete = false;
-			while (memberIdIterator.hasNext()) {
-				memberId += memberIdIterator.next();
-				String memberRole = fieldDecoder.decodeString(memberRoleIterator.next());
-
-				// Get member type
-				Entity entity = null;
-				MemberType memberType = memberTypeIterator.next();
-				switch(memberType) {
-				case NODE:
-					entity = new net.morbz.osmonaut.osm.Node(memberId, null, null);
-					break;
-				case WAY:
-					entity = new net.morbz.osmonaut.osm.Way(memberId, null, null);
-					break;
-				case RELATION:
-					// We don't handle super-relation and instead just ignore
-					// sub-relations
-					// TODO: Handle super-relations
-					isIncomplete = true;
-					continue;
-				}
-
-				// Create member
-				RelationMember member = new RelationMember(entity, memberRole);
-				members.add(member);
-			}
+		// Replace the string table indices of the roles by global role IDs.
+		// The member arrays are owned by the relation from now on.
+		for (int i = 0; i < memberRoles.length; i++) {
+			memberRoles[i] = fieldDecoder.decodeRole(memberRoles[i]);
+		}
 
-			// Create relation
-			long id = relation.getId();
-			Tags tags = buildTags(relation.getKeysList(), relation.getValsList());
-			net.morbz.osmonaut.osm.Relation osmRelation = 
-					new net.morbz.osmonaut.osm.Relation(id, tags, members, isIncomplete);
+		// Create relation
+		Tags tags = buildTags(keys, values, tagCount);
+		net.morbz.osmonaut.osm.Relation osmRelation = 
+				new net.morbz.osmonaut.osm.Relation(id, tags, memberIds, memberTypes, memberRoles);
 
-			// Add to results
-			decodedEntities.add(osmRelation);
-		}
+		// Add to results
+		decodedEntities.add(osmRelation);
 	}
 
-	private void processOsmPrimitives(byte[] data) throws InvalidProtocolBufferException {
-		PrimitiveBlock block = PrimitiveBlock.parseFrom(data);
-		fieldDecoder = new PbfFieldDecoder(block);
+	private void processOsmPrimitives(ByteBuffer data) throws IOException {
+		PrimitiveBlockReader reader = new PrimitiveBlockReader(data);
+		fieldDecoder = reader.getFieldDecoder();
 
-		for (PrimitiveGroup group : block.getPrimitivegroupList()) {
-			// Nodes
-			if(group.hasDense() || group.getNodesCount() > 0) {
-				containedTypes.setEntityEnabled(EntityType.NODE, true);
-
-				if(entityType == EntityType.NODE) {
-					processNodes(group.getDense());
-					processNodes(group.getNodesList());
-				}
+		reader.readGroups(entityType, new PrimitiveBlockListener() {
+			@Override
+			public void node(long id, long latitude, long longitude, int[] keys, int[] values, int tagCount) {
+				processNode(id, latitude, longitude, keys, values, tagCount);
 			}
 
-			// Ways
-			if(group.getWaysCount() > 0) {
-				containedTypes.setEntityEnabled(EntityType.WAY, true);
-
-				if(entityType == EntityType.WAY) {
-					processWays(group.getWaysList());
-				}
+			@Override
+			public void way(long id, int[] keys, int[] values, int tagCount, long[] nodeIds) {
+				processWay(id, keys, values, tagCount, nodeIds);
 			}
 
-
-			// Relations
-			if(group.getRelationsCount() > 0) {
-				containedTypes.setEntityEnabled(EntityType.RELATION, true);
-
-				if(entityType == EntityType.RELATION) {
-					processRelations(group.getRelationsList());
-				}
+			@Override
+			public void relation(long id, int[] keys, int[] values, int tagCount, long[] memberIds,
+					byte[] memberTypes, int[] memberRoles) {
+				processRelation(id, keys, values, tagCount, memberIds, memberTypes, memberRoles);
 			}
-		}
+		});
+		containedTypes = reader.getContainedTypes();
 	}
 
 	private void runAndTrapExceptions() {
+		inflater = inflaterPool.acquire();
 		try {
 			decodedEntities = new ArrayList<Entity>();
 
+			String blobType = rawBlob.getType();
 			if ("OSMHeader".equals(blobType)) {
 				processOsmHeader(readBlobContent());
 			} else if ("OSMData".equals(blobType)) {
@@ -322,6 +292,11 @@ public class PbfBlobDecoder implements Runnable {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException("Unable to process PBF blob", e);
+		} finally {
+			// The decoded entities don't reference the inflater buffers, so
+			// they can be reused for the next blob
+			inflaterPool.release(inflater);
+			inflater = null;
 		}
 	}
 
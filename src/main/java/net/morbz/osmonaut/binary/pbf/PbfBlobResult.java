@@ -4,6 +4,7 @@ package net.morbz.osmonaut.binary.pbf;
 
 import java.util.List;
 
+import net.morbz.osmonaut.EntityFilter;
 import net.morbz.osmonaut.osm.Entity;
 
 /**
@@ -13,13 +14,24 @@ import net.morbz.osmonaut.osm.Entity;
  */
 public class PbfBlobResult {
 	private List<Entity> entities;
+	private EntityFilter containedTypes;
+	private long fileOffset;
+	private int blobSize;
 	private boolean complete;
 	private boolean success;
 
 	/**
 	 * Creates a new instance.
+	 * 
+	 * @param fileOffset
+	 *            The position from the beginning of the PBF file in bytes 
+	 *            where the blob starts.
+	 * @param blobSize
+	 *            The size of the blob in bytes.
 	 */
-	public PbfBlobResult() {
+	public PbfBlobResult(long fileOffset, int blobSize) {
+		this.fileOffset = fileOffset;
+		this.blobSize = blobSize;
 		complete = false;
 		success = false;
 	}
@@ -29,9 +41,12 @@ public class PbfBlobResult {
 	 * 
 	 * @param decodedEntities
 	 *            The entities from the blob.
+	 * @param containedTypes
+	 *            The OSM entity types that the blob contains.
 	 */
-	public void storeSuccessResult(List<Entity> decodedEntities) {
+	public void storeSuccessResult(List<Entity> decodedEntities, EntityFilter containedTypes) {
 		entities = decodedEntities;
+		this.containedTypes = containedTypes;
 		complete = true;
 		success = true;
 	}
@@ -71,4 +86,29 @@ public class PbfBlobResult {
 	public List<Entity> getEntities() {
 		return entities;
 	}
+
+	/**
+	 * Gets the entity types that the blob contains. This is only valid after
+	 * complete becomes true, and if success is true.
+	 * 
+	 * @return The contained entity types.
+	 */
+	public EntityFilter getContainedTypes() {
+		return containedTypes;
+	}
+
+	/**
+	 * @return The position from the beginning of the PBF file in bytes where 
+	 * the blob starts.
+	 */
+	public long getFileOffset() {
+		return fileOffset;
+	}
+
+	/**
+	 * @return The size of the blob in bytes.
+	 */
+	public int getBlobSize() {
+		return blobSize;
+	}
 }
@@ -4,7 +4,7 @@ package net.morbz.osmonaut.binary.pbf;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -15,6 +15,8 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import net.morbz.osmonaut.EntityFilter;
+import net.morbz.osmonaut.IdTracker;
+import net.morbz.osmonaut.TagFilter;
 import net.morbz.osmonaut.binary.OsmonautSink;
 import net.morbz.osmonaut.osm.Entity;
 import net.morbz.osmonaut.osm.EntityType;
@@ -33,9 +35,15 @@ public class PbfDecoder {
 	private Queue<PbfBlobResult> blobResults;
 	private int workers;
 	private OsmonautSink sink;
-	private RandomAccessFile inputStream;
+	private PbfTagFilter tagFilter;
+	private IdTracker neededIds;
+	private boolean concurrentSink;
+	private File pbfFile;
+	private PbfFile inputFile;
 	private ExecutorService executorService;
 	private RawBlobIndexer nodeIndexer, wayIndexer, relationIndexer;
+	private BlobIndexFile indexFile;
+	private BlobInflaterPool inflaterPool = new BlobInflaterPool();
 	private boolean firstScan = true;
 
 	/**
@@ -47,20 +55,36 @@ public class PbfDecoder {
 	 *            The number of worker threads for decoding PBF blocks.
 	 */
 	public PbfDecoder(final File file, int workers) {
+		this(file, workers, false);
+	}
+
+	/**
+	 * Creates a new instance.
+	 * 
+	 * @param file
+	 *            The file to read.
+	 * @param workers
+	 *            The number of worker threads for decoding PBF blocks.
+	 * @param memoryMapped
+	 *            Whether the file should be memory mapped instead of being
+	 *            read into heap buffers.
+	 */
+	public PbfDecoder(final File file, int workers, boolean memoryMapped) {
+		this.pbfFile = file;
 		this.workers = workers;
 		this.maxPendingBlobs = workers + 1;
 
 		// Open PBF file
 		try {
-			inputStream = new RandomAccessFile(file, "r");
+			inputFile = PbfFile.open(file, memoryMapped);
 		} catch (IOException e) {
 			throw new RuntimeException("Unable to read PBF file " + file + ".", e);
 		}
 
 		// Create indexes
-		nodeIndexer = new RawBlobIndexer(inputStream);
-		wayIndexer = new RawBlobIndexer(inputStream);
-		relationIndexer = new RawBlobIndexer(inputStream);
+		nodeIndexer = new RawBlobIndexer(inputFile);
+		wayIndexer = new RawBlobIndexer(inputFile);
+		relationIndexer = new RawBlobIndexer(inputFile);
 
 		// Create the thread synchronisation primitives.
 		lock = new ReentrantLock();
@@ -104,6 +128,10 @@ public class PbfDecoder {
 				throw new RuntimeException("A PBF decoding worker thread failed, aborting.");
 			}
 
+			// Index the blob. This happens here so that the index has the
+			// same order as the file.
+			indexBlob(blobResult);
+
 			// Send the processed entities to the sink. We can release the lock
 			// for the duration of processing to allow worker threads to post
 			// their results.
@@ -124,7 +152,7 @@ public class PbfDecoder {
 		// right order, no matter how they are ordered in the file.
 		RawBlobProvider provider = null;
 		if(firstScan) {
-			provider = new RawBlobReader(inputStream);
+			provider = new RawBlobReader(inputFile);
 		} else {
 			switch(type) {
 			case NODE:
@@ -140,13 +168,14 @@ public class PbfDecoder {
 		}
 
 		// Process until the PBF stream is exhausted.
+		final OsmonautSink workerSink = concurrentSink ? sink : null;
 		while (provider.hasNext()) {
 			// Obtain the next raw blob from the PBF stream.
 			final PbfRawBlob rawBlob = provider.next();
 
 			// Create the result object to capture the results of the decoded
 			// blob and add it to the blob results queue.
-			final PbfBlobResult blobResult = new PbfBlobResult();
+			final PbfBlobResult blobResult = new PbfBlobResult(rawBlob.getFileOffset(), rawBlob.getSize());
 			blobResults.add(blobResult);
 
 			// Create the listener object that will update the blob results
@@ -165,10 +194,17 @@ public class PbfDecoder {
 
 				@Override
 				public void complete(List<Entity> decodedEntities, EntityFilter containedTypes) {
+					// A concurrent sink gets the entities on the worker thread
+					if (workerSink != null) {
+						for (Entity entity : decodedEntities) {
+							workerSink.foundEntity(entity);
+						}
+						decodedEntities = Collections.emptyList();
+					}
+
 					lock.lock();
 					try {
-						blobResult.storeSuccessResult(decodedEntities);
-						indexBlob(rawBlob, containedTypes);
+						blobResult.storeSuccessResult(decodedEntities, containedTypes);
 						signalUpdate();
 					} finally {
 						lock.unlock();
@@ -177,7 +213,10 @@ public class PbfDecoder {
 			};
 
 			// Create the blob decoder itself and execute it on a worker thread.
-			PbfBlobDecoder blobDecoder = new PbfBlobDecoder(rawBlob.getType(), rawBlob.getData(), decoderListener, type);
+			// The worker also reads the blob data from the file, so that I/O
+			// is spread across all workers.
+			PbfBlobDecoder blobDecoder = new PbfBlobDecoder(rawBlob, inflaterPool, decoderListener, type,
+					tagFilter, neededIds);
 			executorService.execute(blobDecoder);
 
 			// If the number of pending blobs has reached capacity we must begin
@@ -189,17 +228,27 @@ public class PbfDecoder {
 		// There are no more entities available in the PBF stream, so send all remaining data to the sink.
 		sendResultsToSink(0);
 
+		// Persist the index. It's only an optimization for later scans, so 
+		// the scan doesn't fail if it can't be written.
+		if(firstScan && indexFile != null) {
+			try {
+				indexFile.save(nodeIndexer, wayIndexer, relationIndexer);
+			} catch (IOException e) {
+			}
+		}
+
 		firstScan = false;
 		provider.resetIterator();
 	}
 
-	private void indexBlob(PbfRawBlob rawBlob, EntityFilter containedTypes) {
+	private void indexBlob(PbfBlobResult blobResult) {
 		if(!firstScan) {
 			return;
 		}
 
-		long fileOffset = rawBlob.getFileOffset();
-		int blobSize = rawBlob.getData().length;
+		long fileOffset = blobResult.getFileOffset();
+		int blobSize = blobResult.getBlobSize();
+		EntityFilter containedTypes = blobResult.getContainedTypes();
 
 		// Each blob may contain entities of different types, so we can't just
 		// use an enum array.
@@ -214,6 +263,25 @@ public class PbfDecoder {
 		}
 	}
 
+	/**
+	 * Uses a sidecar file for the blob index. If the file contains a valid
+	 * index for the PBF file it is loaded, so that even the first scan only
+	 * reads the relevant blobs. Otherwise the index is written to the file
+	 * after the first scan. Must be called before the first scan.
+	 * 
+	 * @param file The sidecar file of the blob index
+	 * @return True if a valid index has been loaded
+	 */
+	public boolean useIndexFile(File file) {
+		indexFile = new BlobIndexFile(file, pbfFile);
+		if(indexFile.load(nodeIndexer, wayIndexer, relationIndexer)) {
+			firstScan = false;
+			indexFile = null;
+			return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Scans the PBF file for entities of the given type and sends them to the
 	 * sink.
@@ -222,7 +290,49 @@ public class PbfDecoder {
 	 * @param sink The sink to send all decoded entities to
 	 */
 	public void scan(EntityType type, OsmonautSink sink) {
+		scan(type, null, null, sink);
+	}
+
+	/**
+	 * Scans the PBF file for entities of the given type and sends them to the
+	 * sink. Entities that don't match the tag filter are rejected by the 
+	 * worker threads before their tags are decoded, unless they are needed.
+	 * @param type The entity type to scan for. Only entities of this type will
+	 * be returned.
+	 * @param tagFilter The filter that entities have to match. May be null to
+	 * return all entities.
+	 * @param neededIds The IDs of entities that are returned even if they 
+	 * don't match the filter. Must not be modified during the scan. May be 
+	 * null.
+	 * @param sink The sink to send all decoded entities to
+	 */
+	public void scan(EntityType type, TagFilter tagFilter, IdTracker neededIds, OsmonautSink sink) {
+		scan(type, tagFilter, neededIds, sink, false);
+	}
+
+	/**
+	 * Scans the PBF file like scan(), but the entities are passed to the sink
+	 * directly by the worker threads. The sink must be thread-safe and gets
+	 * the entities in no particular order.
+	 * @param type The entity type to scan for. Only entities of this type will
+	 * be returned.
+	 * @param tagFilter The filter that entities have to match. May be null to
+	 * return all entities.
+	 * @param neededIds The IDs of entities that are returned even if they 
+	 * don't match the filter. Must not be modified during the scan. May be 
+	 * null.
+	 * @param sink The thread-safe sink to send all decoded entities to
+	 */
+	public void scanConcurrently(EntityType type, TagFilter tagFilter, IdTracker neededIds, OsmonautSink sink) {
+		scan(type, tagFilter, neededIds, sink, true);
+	}
+
+	private void scan(EntityType type, TagFilter tagFilter, IdTracker neededIds, OsmonautSink sink, 
+			boolean concurrentSink) {
 		this.sink = sink;
+		this.concurrentSink = concurrentSink;
+		this.tagFilter = tagFilter == null ? null : new PbfTagFilter(tagFilter);
+		this.neededIds = neededIds;
 
 		executorService = Executors.newFixedThreadPool(workers);
 
@@ -248,9 +358,11 @@ public class PbfDecoder {
 	 * Closes the PBF file.
 	 */
 	public void close() {
-		if(inputStream != null) {
+		inflaterPool.close();
+
+		if(inputFile != null) {
 			try {
-				inputStream.close();
+				inputFile.close();
 			} catch (IOException e) {
 			}
 		}
@@ -2,11 +2,16 @@
 
 package net.morbz.osmonaut.binary.pbf;
 
-import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock;
-import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.StringTable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import net.morbz.osmonaut.osm.Relation;
+import net.morbz.osmonaut.osm.Tags;
 
 /**
- * Manages decoding of the lower level PBF data structures.
+ * Manages decoding of the lower level PBF data structures. Strings are decoded
+ * on first access and then cached, so the block data must not be modified 
+ * while this decoder is in use.
  * 
  * @author Brett Henderson
  * 
@@ -14,7 +19,13 @@ import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.StringTable;
 public class PbfFieldDecoder {
 	private static final double COORDINATE_SCALING_FACTOR = 0.000000001;
 
+	private byte[] data;
+	private int[] stringOffsets;
+	private int[] stringLengths;
 	private String[] strings;
+	private int[] keyIds;
+	private int[] roleIds;
+	private boolean[] interned;
 	private int coordGranularity;
 	private long coordLatitudeOffset;
 	private long coordLongitudeOffset;
@@ -22,19 +33,91 @@ public class PbfFieldDecoder {
 	/**
 	 * Creates a new instance.
 	 * 
-	 * @param primitiveBlock
-	 *            The primitive block containing the fields to be decoded.
+	 * @param data
+	 *            The array that holds the UTF-8 encoded strings of the block.
+	 * @param stringOffsets
+	 *            The offsets of the strings in the array.
+	 * @param stringLengths
+	 *            The lengths of the strings in bytes.
+	 * @param granularity
+	 *            The coordinate granularity of the block.
+	 * @param latOffset
+	 *            The latitude offset of the block.
+	 * @param lonOffset
+	 *            The longitude offset of the block.
+	 */
+	public PbfFieldDecoder(byte[] data, int[] stringOffsets, int[] stringLengths, int granularity, long latOffset,
+			long lonOffset) {
+		this.coordGranularity = granularity;
+		this.coordLatitudeOffset = latOffset;
+		this.coordLongitudeOffset = lonOffset;
+
+		this.data = data;
+		this.stringOffsets = stringOffsets;
+		this.stringLengths = stringLengths;
+		strings = new String[stringOffsets.length];
+	}
+
+	/**
+	 * Decodes a raw string into the ID of a tag key. The IDs are cached, so
+	 * the global key dictionary is only queried once per string and block.
+	 * 
+	 * @param rawString
+	 *            The PBF encoding string.
+	 * @return The ID of the key as returned by Tags.getKeyId().
+	 */
+	public int decodeKey(int rawString) {
+		if (keyIds == null) {
+			keyIds = new int[strings.length];
+			Arrays.fill(keyIds, -1);
+		}
+		int keyId = keyIds[rawString];
+		if (keyId == -1) {
+			keyId = Tags.getKeyId(decodeString(rawString));
+			keyIds[rawString] = keyId;
+		}
+		return keyId;
+	}
+
+	/**
+	 * Decodes a raw string into the ID of a member role. The IDs are cached,
+	 * so the global role dictionary is only queried once per string and 
+	 * block.
+	 * 
+	 * @param rawString
+	 *            The PBF encoding string.
+	 * @return The ID of the role as returned by Relation.getRoleId().
+	 */
+	public int decodeRole(int rawString) {
+		if (roleIds == null) {
+			roleIds = new int[strings.length];
+			Arrays.fill(roleIds, -1);
+		}
+		int roleId = roleIds[rawString];
+		if (roleId == -1) {
+			roleId = Relation.getRoleId(decodeString(rawString));
+			roleIds[rawString] = roleId;
+		}
+		return roleId;
+	}
+
+	/**
+	 * Decodes a raw string into a tag value. Common values are
+	 * replaced by their globally shared instance.
+	 * 
+	 * @param rawString
+	 *            The PBF encoding string.
+	 * @return The string as a String.
 	 */
-	public PbfFieldDecoder(PrimitiveBlock primitiveBlock) {
-		this.coordGranularity = primitiveBlock.getGranularity();
-		this.coordLatitudeOffset = primitiveBlock.getLatOffset();
-		this.coordLongitudeOffset = primitiveBlock.getLonOffset();
-
-		StringTable stringTable = primitiveBlock.getStringtable();
-		strings = new String[stringTable.getSCount()];
-		for (int i = 0; i < strings.length; i++) {
-			strings[i] = stringTable.getS(i).toStringUtf8();
+	public String decodeValue(int rawString) {
+		if (interned == null) {
+			interned = new boolean[strings.length];
+		}
+		if (!interned[rawString]) {
+			strings[rawString] = Tags.internValue(decodeString(rawString));
+			interned[rawString] = true;
 		}
+		return strings[rawString];
 	}
 
 	/**
@@ -67,6 +150,52 @@ public class PbfFieldDecoder {
 	 * @return The string as a String.
 	 */
 	public String decodeString(int rawString) {
-		return strings[rawString];
+		String string = strings[rawString];
+		if (string == null) {
+			string = decodeUtf8(stringOffsets[rawString], stringLengths[rawString]);
+			strings[rawString] = string;
+		}
+		return string;
+	}
+
+	/**
+	 * @return The number of strings in the string table.
+	 */
+	public int getStringCount() {
+		return strings.length;
+	}
+
+	/**
+	 * Compares a raw string with UTF-8 encoded bytes without decoding it.
+	 * 
+	 * @param rawString
+	 *            The PBF encoding string.
+	 * @param utf8
+	 *            The UTF-8 encoded string to compare with.
+	 * @return True if the strings are equal.
+	 */
+	public boolean stringEquals(int rawString, byte[] utf8) {
+		int length = stringLengths[rawString];
+		if (length != utf8.length) {
+			return false;
+		}
+		int offset = stringOffsets[rawString];
+		for (int i = 0; i < length; i++) {
+			if (data[offset + i] != utf8[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String decodeUtf8(int offset, int length) {
+		// Most strings are ASCII, which can be decoded without the UTF-8
+		// decoder as it is a subset of ISO-8859-1
+		for (int i = offset; i < offset + length; i++) {
+			if (data[i] < 0) {
+				return new String(data, offset, length, StandardCharsets.UTF_8);
+			}
+		}
+		return new String(data, offset, length, StandardCharsets.ISO_8859_1);
 	}
 }
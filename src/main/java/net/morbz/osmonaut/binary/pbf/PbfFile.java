@@ -0,0 +1,85 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Provides access to the bytes of a PBF file at arbitrary positions. Reads
+ * may happen from multiple threads at the same time.
+ */
+public abstract class PbfFile {
+	/**
+	 * Opens the given PBF file.
+	 *
+	 * @param file The PBF file
+	 * @param memoryMapped Whether the file should be memory mapped instead of
+	 * being read into heap buffers
+	 * @return The opened PBF file
+	 * @throws IOException If the file can't be opened
+	 */
+	public static PbfFile open(File file, boolean memoryMapped) throws IOException {
+		if(memoryMapped) {
+			return new MappedPbfFile(file);
+		}
+		return new ChannelPbfFile(file);
+	}
+
+	/**
+	 * Reads a range of bytes from the file.
+	 *
+	 * @param position The position from the beginning of the file in bytes
+	 * @param size The number of bytes to read
+	 * @return A buffer that holds exactly the requested bytes
+	 * @throws IOException If the range can't be read completely
+	 */
+	public ByteBuffer read(long position, int size) throws IOException {
+		return read(position, size, null);
+	}
+
+	/**
+	 * Reads a range of bytes from the file.
+	 *
+	 * @param position The position from the beginning of the file in bytes
+	 * @param size The number of bytes to read
+	 * @param buffer An array that is used to hold the bytes if they have to 
+	 * be copied and the array is large enough. May be null.
+	 * @return A buffer that holds exactly the requested bytes
+	 * @throws IOException If the range can't be read completely
+	 */
+	public abstract ByteBuffer read(long position, int size, byte[] buffer) throws IOException;
+
+	/**
+	 * @return The size of the file in bytes
+	 */
+	public abstract long size();
+
+	/**
+	 * Closes the file.
+	 */
+	public abstract void close() throws IOException;
+}
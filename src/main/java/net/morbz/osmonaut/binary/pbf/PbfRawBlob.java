@@ -2,6 +2,9 @@
 
 package net.morbz.osmonaut.binary.pbf;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * Represents a single piece of raw blob data extracted from the PBF stream. It
  * has not yet been decoded into a PBF blob object.
@@ -11,8 +14,10 @@ package net.morbz.osmonaut.binary.pbf;
  */
 public class PbfRawBlob {
 	private String type;
-	private byte[] data;
+	private ByteBuffer data;
+	private PbfFile file;
 	private long fileOffset;
+	private int size;
 
 	/**
 	 * Creates a new instance.
@@ -21,15 +26,39 @@ public class PbfRawBlob {
 	 *            The type of data represented by this blob. This corresponds to
 	 *            the type field in the blob header.
 	 * @param data
-	 *            The raw contents of the blob in binary undecoded form.
+	 *            The raw contents of the blob in binary undecoded form. This
+	 *            may be a slice of a memory mapped file.
 	 * @param fileOffset        
 	 *            The position from the beginning of the PBF file in bytes 
 	 *            where the blob starts
 	 */
-	public PbfRawBlob(String type, byte[] data, long fileOffset) {
+	public PbfRawBlob(String type, ByteBuffer data, long fileOffset) {
 		this.type = type;
 		this.data = data;
 		this.fileOffset = fileOffset;
+		this.size = data.remaining();
+	}
+
+	/**
+	 * Creates a new instance whose data is not read until it is requested. 
+	 * This allows the data to be read by the thread that decodes the blob.
+	 * 
+	 * @param type
+	 *            The type of data represented by this blob. This corresponds to
+	 *            the type field in the blob header.
+	 * @param file
+	 *            The file to read the blob from.
+	 * @param fileOffset        
+	 *            The position from the beginning of the PBF file in bytes 
+	 *            where the blob starts
+	 * @param size
+	 *            The size of the blob in bytes
+	 */
+	public PbfRawBlob(String type, PbfFile file, long fileOffset, int size) {
+		this.type = type;
+		this.file = file;
+		this.fileOffset = fileOffset;
+		this.size = size;
 	}
 
 	/**
@@ -43,12 +72,40 @@ public class PbfRawBlob {
 	}
 
 	/**
-	 * Gets the raw contents of the blob in binary undecoded form.
+	 * Gets the raw contents of the blob in binary undecoded form. If the blob
+	 * has been created without data, the data is read from the file on every
+	 * call.
+	 * 
+	 * @return The raw blob data.
+	 * @throws IOException If the data can't be read
+	 */
+	public ByteBuffer getData() throws IOException {
+		return getData(null);
+	}
+
+	/**
+	 * Gets the raw contents of the blob in binary undecoded form. If the blob
+	 * has been created without data, the data is read from the file on every
+	 * call.
 	 * 
+	 * @param buffer
+	 *            An array that is used to hold the data if it has to be read 
+	 *            from the file and the array is large enough. May be null.
 	 * @return The raw blob data.
+	 * @throws IOException If the data can't be read
+	 */
+	public ByteBuffer getData(byte[] buffer) throws IOException {
+		if (data != null) {
+			return data;
+		}
+		return file.read(fileOffset, size, buffer);
+	}
+
+	/**
+	 * @return The size of the raw blob data in bytes
 	 */
-	public byte[] getData() {
-		return data;
+	public int getSize() {
+		return size;
 	}
 
 	/**
@@ -0,0 +1,145 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import net.morbz.osmonaut.TagFilter;
+
+/**
+ * Evaluates a TagFilter on the raw string table indices of a block, so that
+ * entities can be rejected before their tags are decoded. The strings of the
+ * filter are compared with the UTF-8 encoded strings of the block, so no
+ * strings have to be decoded either.
+ */
+public class PbfTagFilter {
+	private byte[][] keys;
+	private boolean[] anyValue;
+	private byte[][][] values;
+
+	/**
+	 * @param filter The tag filter
+	 */
+	public PbfTagFilter(TagFilter filter) {
+		// Merge both kinds of keys
+		Set<String> allKeys = new LinkedHashSet<String>(filter.getKeys());
+		allKeys.addAll(filter.getKeyValues().keySet());
+
+		keys = new byte[allKeys.size()][];
+		anyValue = new boolean[allKeys.size()];
+		values = new byte[allKeys.size()][][];
+		int i = 0;
+		for (String key : allKeys) {
+			keys[i] = key.getBytes(StandardCharsets.UTF_8);
+			anyValue[i] = filter.getKeys().contains(key);
+
+			Set<String> keyValues = filter.getKeyValues().get(key);
+			if (anyValue[i] || keyValues == null) {
+				values[i] = new byte[0][];
+			} else {
+				values[i] = new byte[keyValues.size()][];
+				int j = 0;
+				for (String value : keyValues) {
+					values[i][j++] = value.getBytes(StandardCharsets.UTF_8);
+				}
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * Resolves the filter against the string table of a block.
+	 *
+	 * @param fieldDecoder The field decoder of the block
+	 * @return The filter for the block
+	 */
+	public BlockFilter resolve(PbfFieldDecoder fieldDecoder) {
+		int stringCount = fieldDecoder.getStringCount();
+
+		// Flag the string table indices of the keys and values. The string
+		// table may contain duplicates, so every index is checked. Values may
+		// also be keys.
+		int[] keyIndexes = new int[stringCount];
+		boolean[][] valueMatches = new boolean[keys.length][];
+		for (int i = 0; i < keys.length; i++) {
+			if (values[i].length > 0) {
+				valueMatches[i] = new boolean[stringCount];
+			}
+		}
+		for (int string = 0; string < stringCount; string++) {
+			for (int i = 0; i < keys.length; i++) {
+				if (fieldDecoder.stringEquals(string, keys[i])) {
+					keyIndexes[string] = i + 1;
+				}
+				for (int j = 0; j < values[i].length; j++) {
+					if (fieldDecoder.stringEquals(string, values[i][j])) {
+						valueMatches[i][string] = true;
+					}
+				}
+			}
+		}
+		return new BlockFilter(keyIndexes, valueMatches);
+	}
+
+	/**
+	 * The tag filter resolved against the string table of one block.
+	 */
+	public class BlockFilter {
+		// Index of the filter key plus 1 for every string of the table
+		private int[] keyIndexes;
+		// Whether a string of the table is a value of the filter key, null
+		// for keys without values
+		private boolean[][] valueMatches;
+
+		private BlockFilter(int[] keyIndexes, boolean[][] valueMatches) {
+			this.keyIndexes = keyIndexes;
+			this.valueMatches = valueMatches;
+		}
+
+		/**
+		 * @param keys The string table indices of the tag keys
+		 * @param values The string table indices of the tag values
+		 * @param tagCount The number of tags
+		 * @return True if the tags match the filter
+		 */
+		public boolean matches(int[] keys, int[] values, int tagCount) {
+			for (int i = 0; i < tagCount; i++) {
+				int key = keyIndexes[keys[i]] - 1;
+				if (key == -1) {
+					continue;
+				}
+				if (anyValue[key]) {
+					return true;
+				}
+				if (valueMatches[key] != null && valueMatches[key][values[i]]) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+/**
+ * Receives the entities of a primitive block from the PrimitiveBlockReader. 
+ * All string values are indexes into the string table of the block. Tag 
+ * arrays are reused by the reader and are only valid during the call, all 
+ * other arrays belong to the listener.
+ */
+public interface PrimitiveBlockListener {
+	/**
+	 * @param id The node ID
+	 * @param latitude The raw latitude
+	 * @param longitude The raw longitude
+	 * @param keys The tag keys
+	 * @param values The tag values
+	 * @param tagCount The number of tags
+	 */
+	void node(long id, long latitude, long longitude, int[] keys, int[] values, int tagCount);
+
+	/**
+	 * @param id The way ID
+	 * @param keys The tag keys
+	 * @param values The tag values
+	 * @param tagCount The number of tags
+	 * @param nodeIds The IDs of the way nodes
+	 */
+	void way(long id, int[] keys, int[] values, int tagCount, long[] nodeIds);
+
+	/**
+	 * @param id The relation ID
+	 * @param keys The tag keys
+	 * @param values The tag values
+	 * @param tagCount The number of tags
+	 * @param memberIds The IDs of the members
+	 * @param memberTypes The types of the members as defined by the PBF format:
+	 * 0 for nodes, 1 for ways and 2 for relations
+	 * @param memberRoles The string table indices of the roles of the members
+	 */
+	void relation(long id, int[] keys, int[] values, int tagCount, long[] memberIds, byte[] memberTypes, 
+			int[] memberRoles);
+}
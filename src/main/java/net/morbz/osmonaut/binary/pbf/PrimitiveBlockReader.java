@@ -0,0 +1,524 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import net.morbz.osmonaut.EntityFilter;
+import net.morbz.osmonaut.osm.EntityType;
+
+/**
+ * Decodes a PrimitiveBlock by walking the protobuf wire format, instead of
+ * building the object graph of the generated Osmformat classes. Packed fields
+ * are decoded into primitive arrays, delta coded fields are decoded while
+ * reading and groups of unrequested entity types are skipped without being
+ * decoded.
+ */
+public class PrimitiveBlockReader {
+	// Field numbers of the PrimitiveBlock message
+	private static final int BLOCK_STRINGTABLE = 1;
+	private static final int BLOCK_PRIMITIVEGROUP = 2;
+	private static final int BLOCK_GRANULARITY = 17;
+	private static final int BLOCK_LAT_OFFSET = 19;
+	private static final int BLOCK_LON_OFFSET = 20;
+	private static final int STRINGTABLE_S = 1;
+
+	// Field numbers of the PrimitiveGroup message
+	private static final int GROUP_NODES = 1;
+	private static final int GROUP_DENSE = 2;
+	private static final int GROUP_WAYS = 3;
+	private static final int GROUP_RELATIONS = 4;
+
+	// Field numbers of the entity messages
+	private static final int ID = 1;
+	private static final int KEYS = 2;
+	private static final int VALS = 3;
+	private static final int NODE_LAT = 8;
+	private static final int NODE_LON = 9;
+	private static final int DENSE_LAT = 8;
+	private static final int DENSE_LON = 9;
+	private static final int DENSE_KEYS_VALS = 10;
+	private static final int WAY_REFS = 8;
+	private static final int RELATION_ROLES_SID = 8;
+	private static final int RELATION_MEMIDS = 9;
+	private static final int RELATION_TYPES = 10;
+
+	private byte[] data;
+	private int offset;
+	private int length;
+	private PbfFieldDecoder fieldDecoder;
+	private EntityFilter containedTypes = new EntityFilter(false, false, false);
+
+	// Positions of the primitive groups
+	private IntArray groupOffsets = new IntArray();
+	private IntArray groupLengths = new IntArray();
+
+	// Reusable arrays
+	private IntArray keys = new IntArray();
+	private IntArray values = new IntArray();
+	private IntArray keysValues = new IntArray();
+	private IntArray roles = new IntArray();
+	private IntArray types = new IntArray();
+	private LongArray ids = new LongArray();
+	private LongArray latitudes = new LongArray();
+	private LongArray longitudes = new LongArray();
+	private LongArray refs = new LongArray();
+
+	/**
+	 * Reads the block level fields of a primitive block.
+	 *
+	 * @param block The encoded primitive block, must be backed by an array
+	 * @throws IOException If the block can't be decoded
+	 */
+	public PrimitiveBlockReader(ByteBuffer block) throws IOException {
+		data = block.array();
+		offset = block.arrayOffset() + block.position();
+		length = block.remaining();
+
+		// The groups can only be decoded after the granularity and offsets are
+		// known, which are usually stored at the end of the block. So only
+		// the positions of the groups and strings are remembered here.
+		IntArray stringOffsets = new IntArray();
+		IntArray stringLengths = new IntArray();
+		int granularity = 100;
+		long latOffset = 0;
+		long lonOffset = 0;
+
+		CodedInputStream input = newInput(offset, length);
+		while (true) {
+			int tag = input.readTag();
+			if (tag == 0) {
+				break;
+			}
+			switch (WireFormat.getTagFieldNumber(tag)) {
+			case BLOCK_STRINGTABLE:
+				int limit = input.pushLimit(input.readRawVarint32());
+				while (true) {
+					int stringTag = input.readTag();
+					if (stringTag == 0) {
+						break;
+					}
+					if (WireFormat.getTagFieldNumber(stringTag) == STRINGTABLE_S) {
+						int stringLength = input.readRawVarint32();
+						stringOffsets.add(offset + input.getTotalBytesRead());
+						stringLengths.add(stringLength);
+						input.skipRawBytes(stringLength);
+					} else {
+						input.skipField(stringTag);
+					}
+				}
+				input.popLimit(limit);
+				break;
+			case BLOCK_PRIMITIVEGROUP:
+				int groupLength = input.readRawVarint32();
+				groupOffsets.add(offset + input.getTotalBytesRead());
+				groupLengths.add(groupLength);
+				input.skipRawBytes(groupLength);
+				break;
+			case BLOCK_GRANULARITY:
+				granularity = input.readInt32();
+				break;
+			case BLOCK_LAT_OFFSET:
+				latOffset = input.readInt64();
+				break;
+			case BLOCK_LON_OFFSET:
+				lonOffset = input.readInt64();
+				break;
+			default:
+				input.skipField(tag);
+				break;
+			}
+		}
+
+		fieldDecoder = new PbfFieldDecoder(data, stringOffsets.toArray(), stringLengths.toArray(),
+				granularity, latOffset, lonOffset);
+	}
+
+	/**
+	 * @return The decoder for the strings and coordinates of this block
+	 */
+	public PbfFieldDecoder getFieldDecoder() {
+		return fieldDecoder;
+	}
+
+	/**
+	 * @return The entity types that the block contains. This is only valid
+	 * after readGroups() has been called.
+	 */
+	public EntityFilter getContainedTypes() {
+		return containedTypes;
+	}
+
+	/**
+	 * Decodes all entities of the given type and passes them to the listener.
+	 *
+	 * @param type The entity type to decode
+	 * @param listener The listener that receives the entities
+	 * @throws IOException If the block can't be decoded
+	 */
+	public void readGroups(EntityType type, PrimitiveBlockListener listener) throws IOException {
+		for (int i = 0; i < groupOffsets.size; i++) {
+			CodedInputStream input = newInput(groupOffsets.values[i], groupLengths.values[i]);
+			while (true) {
+				int tag = input.readTag();
+				if (tag == 0) {
+					break;
+				}
+
+				// Get the type of the message
+				EntityType groupType;
+				switch (WireFormat.getTagFieldNumber(tag)) {
+				case GROUP_NODES:
+				case GROUP_DENSE:
+					groupType = EntityType.NODE;
+					break;
+				case GROUP_WAYS:
+					groupType = EntityType.WAY;
+					break;
+				case GROUP_RELATIONS:
+					groupType = EntityType.RELATION;
+					break;
+				default:
+					input.skipField(tag);
+					continue;
+				}
+				containedTypes.setEntityEnabled(groupType, true);
+
+				// Skip unrequested types
+				if (groupType != type) {
+					input.skipField(tag);
+					continue;
+				}
+
+				// Read message
+				int limit = input.pushLimit(input.readRawVarint32());
+				switch (WireFormat.getTagFieldNumber(tag)) {
+				case GROUP_NODES:
+					readNode(input, listener);
+					break;
+				case GROUP_DENSE:
+					readDenseNodes(input, listener);
+					break;
+				case GROUP_WAYS:
+					readWay(input, listener);
+					break;
+				case GROUP_RELATIONS:
+					readRelation(input, listener);
+					break;
+				}
+				input.popLimit(limit);
+			}
+		}
+	}
+
+	private void readNode(CodedInputStream input, PrimitiveBlockListener listener) throws IOException {
+		long id = 0;
+		long latitude = 0;
+		long longitude = 0;
+		keys.clear();
+		values.clear();
+
+		while (true) {
+			int tag = input.readTag();
+			if (tag == 0) {
+				break;
+			}
+			switch (WireFormat.getTagFieldNumber(tag)) {
+			case ID:
+				id = input.readSInt64();
+				break;
+			case KEYS:
+				readUInt32s(input, tag, keys);
+				break;
+			case VALS:
+				readUInt32s(input, tag, values);
+				break;
+			case NODE_LAT:
+				latitude = input.readSInt64();
+				break;
+			case NODE_LON:
+				longitude = input.readSInt64();
+				break;
+			default:
+				input.skipField(tag);
+				break;
+			}
+		}
+
+		checkTags();
+		listener.node(id, latitude, longitude, keys.values, values.values, keys.size);
+	}
+
+	private void readDenseNodes(CodedInputStream input, PrimitiveBlockListener listener) throws IOException {
+		ids.clear();
+		latitudes.clear();
+		longitudes.clear();
+		keysValues.clear();
+
+		while (true) {
+			int tag = input.readTag();
+			if (tag == 0) {
+				break;
+			}
+			switch (WireFormat.getTagFieldNumber(tag)) {
+			case ID:
+				readSInt64s(input, tag, ids, true);
+				break;
+			case DENSE_LAT:
+				readSInt64s(input, tag, latitudes, true);
+				break;
+			case DENSE_LON:
+				readSInt64s(input, tag, longitudes, true);
+				break;
+			case DENSE_KEYS_VALS:
+				readUInt32s(input, tag, keysValues);
+				break;
+			default:
+				input.skipField(tag);
+				break;
+			}
+		}
+
+		// Ensure parallel lists are of equal size.
+		if ((ids.size != latitudes.size) || (ids.size != longitudes.size)) {
+			throw new RuntimeException("Number of ids (" + ids.size + "), latitudes (" + latitudes.size
+					+ "), and longitudes (" + longitudes.size + ") don't match");
+		}
+
+		int keyValueIndex = 0;
+		for (int i = 0; i < ids.size; i++) {
+			// The key and value string indexes are sequential in the same PBF
+			// array. Each set of tags is delimited by an index with a value
+			// of 0.
+			keys.clear();
+			values.clear();
+			while (keyValueIndex < keysValues.size) {
+				int keyIndex = keysValues.values[keyValueIndex++];
+				if (keyIndex == 0) {
+					break;
+				}
+				if (keyValueIndex == keysValues.size) {
+					throw new RuntimeException(
+							"The PBF DenseInfo keys/values list contains a key with no corresponding value.");
+				}
+				keys.add(keyIndex);
+				values.add(keysValues.values[keyValueIndex++]);
+			}
+
+			listener.node(ids.values[i], latitudes.values[i], longitudes.values[i], keys.values, values.values,
+					keys.size);
+		}
+	}
+
+	private void readWay(CodedInputStream input, PrimitiveBlockListener listener) throws IOException {
+		long id = 0;
+		keys.clear();
+		values.clear();
+		refs.clear();
+
+		while (true) {
+			int tag = input.readTag();
+			if (tag == 0) {
+				break;
+			}
+			switch (WireFormat.getTagFieldNumber(tag)) {
+			case ID:
+				id = input.readInt64();
+				break;
+			case KEYS:
+				readUInt32s(input, tag, keys);
+				break;
+			case VALS:
+				readUInt32s(input, tag, values);
+				break;
+			case WAY_REFS:
+				readSInt64s(input, tag, refs, true);
+				break;
+			default:
+				input.skipField(tag);
+				break;
+			}
+		}
+
+		checkTags();
+		listener.way(id, keys.values, values.values, keys.size, refs.toArray());
+	}
+
+	private void readRelation(CodedInputStream input, PrimitiveBlockListener listener) throws IOException {
+		long id = 0;
+		keys.clear();
+		values.clear();
+		roles.clear();
+		refs.clear();
+		types.clear();
+
+		while (true) {
+			int tag = input.readTag();
+			if (tag == 0) {
+				break;
+			}
+			switch (WireFormat.getTagFieldNumber(tag)) {
+			case ID:
+				id = input.readInt64();
+				break;
+			case KEYS:
+				readUInt32s(input, tag, keys);
+				break;
+			case VALS:
+				readUInt32s(input, tag, values);
+				break;
+			case RELATION_ROLES_SID:
+				readUInt32s(input, tag, roles);
+				break;
+			case RELATION_MEMIDS:
+				readSInt64s(input, tag, refs, true);
+				break;
+			case RELATION_TYPES:
+				readUInt32s(input, tag, types);
+				break;
+			default:
+				input.skipField(tag);
+				break;
+			}
+		}
+
+		// Ensure parallel lists are of equal size.
+		checkTags();
+		if ((refs.size != roles.size) || (refs.size != types.size)) {
+			throw new RuntimeException("Number of member ids (" + refs.size + "), member roles ("
+					+ roles.size + "), and member types (" + types.size + ") don't match");
+		}
+
+		byte[] memberTypes = new byte[types.size];
+		for (int i = 0; i < types.size; i++) {
+			memberTypes[i] = (byte)types.values[i];
+		}
+		listener.relation(id, keys.values, values.values, keys.size, refs.toArray(), memberTypes,
+				roles.toArray());
+	}
+
+	private void checkTags() {
+		// Ensure parallel lists are of equal size.
+		if (keys.size != values.size) {
+			throw new RuntimeException("Number of tag keys (" + keys.size + ") and tag values ("
+					+ values.size + ") don't match");
+		}
+	}
+
+	private CodedInputStream newInput(int offset, int length) {
+		CodedInputStream input = CodedInputStream.newInstance(data, offset, length);
+		input.setSizeLimit(Integer.MAX_VALUE);
+		return input;
+	}
+
+	/**
+	 * Reads a repeated uint32, int32 or enum field. Packed and unpacked
+	 * encodings are both accepted.
+	 */
+	private static void readUInt32s(CodedInputStream input, int tag, IntArray array) throws IOException {
+		if (WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+			int limit = input.pushLimit(input.readRawVarint32());
+			while (input.getBytesUntilLimit() > 0) {
+				array.add(input.readRawVarint32());
+			}
+			input.popLimit(limit);
+		} else {
+			array.add(input.readRawVarint32());
+		}
+	}
+
+	/**
+	 * Reads a repeated sint64 field. Packed and unpacked encodings are both
+	 * accepted.
+	 *
+	 * @param delta Whether the values are delta coded
+	 */
+	private static void readSInt64s(CodedInputStream input, int tag, LongArray array, boolean delta)
+			throws IOException {
+		long value = (delta && array.size > 0) ? array.values[array.size - 1] : 0;
+		if (WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+			int limit = input.pushLimit(input.readRawVarint32());
+			while (input.getBytesUntilLimit() > 0) {
+				value = delta ? value + input.readSInt64() : input.readSInt64();
+				array.add(value);
+			}
+			input.popLimit(limit);
+		} else {
+			value = delta ? value + input.readSInt64() : input.readSInt64();
+			array.add(value);
+		}
+	}
+
+	/**
+	 * A growable array of ints.
+	 */
+	private static class IntArray {
+		private int[] values = new int[16];
+		private int size;
+
+		public void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		public void clear() {
+			size = 0;
+		}
+
+		public int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * A growable array of longs.
+	 */
+	private static class LongArray {
+		private long[] values = new long[16];
+		private int size;
+
+		public void add(long value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		public void clear() {
+			size = 0;
+		}
+
+		public long[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+}
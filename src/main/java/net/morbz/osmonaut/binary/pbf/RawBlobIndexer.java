@@ -24,8 +24,9 @@ package net.morbz.osmonaut.binary.pbf;
 * SOFTWARE.
 */
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -41,7 +42,7 @@ public class RawBlobIndexer extends RawBlobProvider {
 	/**
 	 * @param file The PBF file input stream
 	 */
-	public RawBlobIndexer(RandomAccessFile file) {
+	public RawBlobIndexer(PbfFile file) {
 		super(file);
 	}
 
@@ -61,16 +62,9 @@ public class RawBlobIndexer extends RawBlobProvider {
 	 */
 	@Override
 	public PbfRawBlob next() {
-		try {
-			BlobFileIndex blobIndex = iterator.next();
-
-			// Read blob
-			file.seek(blobIndex.getFileOffset());
-			byte[] blobData = readRawBlob(blobIndex.getBlobSize());
-			return new PbfRawBlob("OSMData", blobData, blobIndex.getFileOffset());
-		} catch (IOException e) {
-			throw new RuntimeException("Unable to get next blob from PBF stream.", e);
-		}
+		// The blob is read by the thread that decodes it
+		BlobFileIndex blobIndex = iterator.next();
+		return new PbfRawBlob("OSMData", file, blobIndex.getFileOffset(), blobIndex.getBlobSize());
 	}
 
 	/**
@@ -85,6 +79,43 @@ public class RawBlobIndexer extends RawBlobProvider {
 		blobIndexes.add(blobIndex);
 	}
 
+	/**
+	 * Writes all indexed blobs.
+	 * 
+	 * @param out The output to write to
+	 * @throws IOException If writing fails
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(blobIndexes.size());
+		for(BlobFileIndex blobIndex : blobIndexes) {
+			out.writeLong(blobIndex.getFileOffset());
+			out.writeInt(blobIndex.getBlobSize());
+		}
+	}
+
+	/**
+	 * Adds all blobs that have been written with write() to the index.
+	 * 
+	 * @param in The input to read from
+	 * @throws IOException If reading fails
+	 */
+	public void read(DataInput in) throws IOException {
+		int count = in.readInt();
+		for(int i = 0; i < count; i++) {
+			long fileOffset = in.readLong();
+			int blobSize = in.readInt();
+			indexBlob(fileOffset, blobSize);
+		}
+	}
+
+	/**
+	 * Removes all blobs from the index.
+	 */
+	public void clear() {
+		blobIndexes.clear();
+		iterator = null;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
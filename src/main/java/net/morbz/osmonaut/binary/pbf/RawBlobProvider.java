@@ -24,20 +24,19 @@ package net.morbz.osmonaut.binary.pbf;
 * SOFTWARE.
 */
 
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.Iterator;
 
 /** 
- * Provides an iterator that reads the raw blobs of the PBF file.
+ * Provides an iterator over the raw blobs of the PBF file. The data of the 
+ * returned blobs is read when it is first requested.
  */
 public abstract class RawBlobProvider implements Iterator<PbfRawBlob> {
-	protected RandomAccessFile file;
+	protected PbfFile file;
 
 	/**
 	 * @param file The file from which the blobs are read
 	 */
-	public RawBlobProvider(RandomAccessFile file) {
+	public RawBlobProvider(PbfFile file) {
 		this.file = file;
 	}
 
@@ -45,10 +44,4 @@ public abstract class RawBlobProvider implements Iterator<PbfRawBlob> {
 	 * Resets the iterator so that it can be used again.
 	 */
 	public abstract void resetIterator();
-
-	protected byte[] readRawBlob(int size) throws IOException {
-		byte[] rawBlob = new byte[size];
-		file.readFully(rawBlob);
-		return rawBlob;
-	}
 }
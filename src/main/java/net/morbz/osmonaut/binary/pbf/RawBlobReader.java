@@ -2,9 +2,10 @@
 
 package net.morbz.osmonaut.binary.pbf;
 
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.CodedInputStream;
 
 import net.morbz.osmonaut.binary.pbf.proto.Fileformat;
 import net.morbz.osmonaut.binary.pbf.proto.Fileformat.BlobHeader;
@@ -19,6 +20,7 @@ import net.morbz.osmonaut.binary.pbf.proto.Fileformat.BlobHeader;
 public class RawBlobReader extends RawBlobProvider {
 	private boolean eof;
 	private PbfRawBlob nextBlob;
+	private long position;
 
 	/**
 	 * Creates a new instance.
@@ -26,36 +28,37 @@ public class RawBlobReader extends RawBlobProvider {
 	 * @param file
 	 *            The PBF file to be parsed.
 	 */
-	public RawBlobReader(RandomAccessFile file) {
+	public RawBlobReader(PbfFile file) {
 		super(file);
 		eof = false;
 	}
 
 	private BlobHeader readHeader(int headerLength) throws IOException {
-		byte[] headerBuffer = new byte[headerLength];
-		file.readFully(headerBuffer);
+		ByteBuffer headerBuffer = file.read(position, headerLength);
+		position += headerLength;
 
-		BlobHeader blobHeader = Fileformat.BlobHeader.parseFrom(headerBuffer);
+		BlobHeader blobHeader = Fileformat.BlobHeader.parseFrom(CodedInputStream.newInstance(headerBuffer));
 		return blobHeader;
 	}
 
 	private void getNextBlob() {
 		try {
 			// Read the length of the next header block. This is the only time
-			// we should expect to encounter an EOF exception. In all other
+			// we should expect to encounter the end of the file. In all other
 			// cases it indicates a corrupt or truncated file.
-			int headerLength;
-			try {
-				headerLength = file.readInt();
-			} catch (EOFException e) {
+			if (position >= file.size()) {
 				eof = true;
 				return;
 			}
+			int headerLength = file.read(position, 4).getInt();
+			position += 4;
 
+			// Only the header is read here, the blob itself is read by the 
+			// thread that decodes it.
 			BlobHeader blobHeader = readHeader(headerLength);
-			long fileOffset = file.getFilePointer();
-			byte[] blobData = readRawBlob(blobHeader.getDatasize());
-			nextBlob = new PbfRawBlob(blobHeader.getType(), blobData, fileOffset);
+			long fileOffset = position;
+			position += blobHeader.getDatasize();
+			nextBlob = new PbfRawBlob(blobHeader.getType(), file, fileOffset, blobHeader.getDatasize());
 		} catch (IOException e) {
 			throw new RuntimeException("Unable to get next blob from PBF stream.", e);
 		}
@@ -27,9 +27,11 @@ package net.morbz.osmonaut.osm;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.ArrayList;
 import java.util.List;
 
 import net.morbz.osmonaut.geometry.Bounds;
+import net.morbz.osmonaut.util.StringDictionary;
 import net.morbz.osmonaut.util.StringUtil;
 
 /**
@@ -38,8 +40,14 @@ import net.morbz.osmonaut.util.StringUtil;
  * @author MorbZ
  */
 public class Relation extends Entity {
+	private static final EntityType[] MEMBER_TYPES = EntityType.values();
+	private static final StringDictionary roleDictionary = new StringDictionary();
+
 	private List<RelationMember> members;
 	private boolean isIncomplete;
+	private long[] memberIds;
+	private byte[] memberTypes;
+	private int[] memberRoles;
 
 	/**
 	 * @return Whether this relation is incomplete. Incomplete means that not
@@ -63,6 +71,60 @@ public class Relation extends Entity {
 		this.isIncomplete = isIncomplete;
 	}
 
+	/**
+	 * Creates a relation whose members have not been resolved yet. The 
+	 * members are stored as parallel arrays, which is much more compact than
+	 * member objects. Relations that have relations as members are 
+	 * incomplete.
+	 * 
+	 * @param id
+	 *            The OSM-ID of this relation
+	 * @param tags
+	 *            The tags of this relation
+	 * @param memberIds
+	 *            The IDs of the members
+	 * @param memberTypes
+	 *            The ordinals of the EntityType of the members
+	 * @param memberRoles
+	 *            The IDs of the roles of the members, as returned by 
+	 *            getRoleId()
+	 */
+	public Relation(long id, Tags tags, long[] memberIds, byte[] memberTypes, int[] memberRoles) {
+		super(id, tags);
+		this.memberIds = memberIds;
+		this.memberTypes = memberTypes;
+		this.memberRoles = memberRoles;
+
+		// We don't handle super-relations
+		// TODO: Handle super-relations
+		for (byte memberType : memberTypes) {
+			if (MEMBER_TYPES[memberType] == EntityType.RELATION) {
+				isIncomplete = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the ID of a member role. The role is added to the global role
+	 * dictionary if it's not present yet.
+	 * 
+	 * @param role
+	 *            The role
+	 * @return The ID of the role
+	 */
+	public static int getRoleId(String role) {
+		return roleDictionary.add(role);
+	}
+
+	/**
+	 * @param roleId
+	 *            The ID of the role, as returned by getRoleId()
+	 * @return The role
+	 */
+	public static String getRole(int roleId) {
+		return roleDictionary.get(roleId);
+	}
+
 	/**
 	 * No-arg constructor for Externalizable
 	 */
@@ -74,9 +136,83 @@ public class Relation extends Entity {
 	 * @return The members of this relation
 	 */
 	public List<RelationMember> getMembers() {
+		if (members == null && memberIds != null) {
+			// Create members without tags and coordinates for unresolved 
+			// relations. Relation members are not supported.
+			List<RelationMember> placeholders = new ArrayList<RelationMember>(memberIds.length);
+			for (int i = 0; i < memberIds.length; i++) {
+				Entity entity;
+				switch (getMemberType(i)) {
+				case NODE:
+					entity = new Node(memberIds[i], null, null);
+					break;
+				case WAY:
+					entity = new Way(memberIds[i], null, new long[0]);
+					break;
+				default:
+					continue;
+				}
+				placeholders.add(new RelationMember(entity, getMemberRole(i)));
+			}
+			return placeholders;
+		}
 		return members;
 	}
 
+	/**
+	 * @return The number of members of this relation
+	 */
+	public int getMemberCount() {
+		if (memberIds != null) {
+			return memberIds.length;
+		}
+		return members.size();
+	}
+
+	/**
+	 * @param index
+	 *            The index of the member
+	 * @return The ID of the member
+	 */
+	public long getMemberId(int index) {
+		if (memberIds != null) {
+			return memberIds[index];
+		}
+		return members.get(index).getEntity().getId();
+	}
+
+	/**
+	 * @param index
+	 *            The index of the member
+	 * @return The entity type of the member
+	 */
+	public EntityType getMemberType(int index) {
+		if (memberTypes != null) {
+			return MEMBER_TYPES[memberTypes[index]];
+		}
+		return members.get(index).getEntity().getEntityType();
+	}
+
+	/**
+	 * @param index
+	 *            The index of the member
+	 * @return The role of the member
+	 */
+	public String getMemberRole(int index) {
+		if (memberRoles != null) {
+			return roleDictionary.get(memberRoles[index]);
+		}
+		return members.get(index).getRole();
+	}
+
+	/**
+	 * @return True if the members of this relation have been resolved to
+	 *         entities
+	 */
+	public boolean isResolved() {
+		return memberIds == null;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -91,7 +227,7 @@ public class Relation extends Entity {
 	@Override
 	public LatLon getCenter() {
 		Bounds bounds = new Bounds();
-		for (RelationMember member : members) {
+		for (RelationMember member : getMembers()) {
 			LatLon center = member.getEntity().getCenter();
 			if (center != null) {
 				bounds.extend(center);
@@ -106,7 +242,7 @@ public class Relation extends Entity {
 	@Override
 	public Bounds getBounds() {
 		Bounds bounds = new Bounds();
-		for (RelationMember member : members) {
+		for (RelationMember member : getMembers()) {
 			Bounds memberBounds = member.getEntity().getBounds();
 			if (memberBounds != null) {
 				bounds.extend(memberBounds);
@@ -125,7 +261,7 @@ public class Relation extends Entity {
 		str += "\t" + "id: " + id + "\n";
 		str += "\t" + "tags: " + StringUtil.indent(getTags().toString());
 		str += "\t" + "members: [" + "\n";
-		for (RelationMember member : members) {
+		for (RelationMember member : getMembers()) {
 			str += StringUtil.indent(StringUtil.indent(member.toString()));
 		}
 		str += "\t" + "]" + "\n";
@@ -142,6 +278,19 @@ public class Relation extends Entity {
 
 		out.writeObject(members);
 		out.writeBoolean(isIncomplete);
+
+		// The role IDs are only valid in this process, so the roles are 
+		// written as strings
+		if (memberIds == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(memberIds.length);
+			for (int i = 0; i < memberIds.length; i++) {
+				out.writeLong(memberIds[i]);
+				out.writeByte(memberTypes[i]);
+				out.writeUTF(roleDictionary.get(memberRoles[i]));
+			}
+		}
 	}
 
 	/**
@@ -154,5 +303,17 @@ public class Relation extends Entity {
 
 		members = (List<RelationMember>)in.readObject();
 		isIncomplete = in.readBoolean();
+
+		int memberCount = in.readInt();
+		if (memberCount != -1) {
+			memberIds = new long[memberCount];
+			memberTypes = new byte[memberCount];
+			memberRoles = new int[memberCount];
+			for (int i = 0; i < memberCount; i++) {
+				memberIds[i] = in.readLong();
+				memberTypes[i] = in.readByte();
+				memberRoles[i] = getRoleId(in.readUTF());
+			}
+		}
 	}
 }
@@ -28,27 +28,68 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
+import java.util.NoSuchElementException;
+
+import net.morbz.osmonaut.util.StringDictionary;
 
 /**
  * A class that holds the tags of an OSM entity. Iteration on this class is
  * based on the keys.
  * 
+ * The keys of all tags are stored in a global dictionary and tags only hold
+ * their IDs, so keys are compared by integer comparison.
+ * 
  * @author MorbZ
  */
 public class Tags implements Iterable<String>, Externalizable {
-	private List<String> keys;
-	private List<String> values;
+	// Values that are longer than this are unlikely to be shared by many
+	// entities, so they are not interned
+	private static final int MAX_COMMON_VALUE_LENGTH = 16;
+	private static final int MAX_COMMON_VALUES = 1 << 16;
+
+	private static final StringDictionary keyDictionary = new StringDictionary();
+	private static final StringDictionary valueDictionary = new StringDictionary(MAX_COMMON_VALUES);
+
+	private int[] keys;
+	private String[] values;
+	private int size = 0;
+
+	/**
+	 * Returns the ID of a tag key. The key is added to the global key 
+	 * dictionary if it's not present yet.
+	 * 
+	 * @param key
+	 *            The key of the tag
+	 * @return The ID of the key
+	 */
+	public static int getKeyId(String key) {
+		return keyDictionary.add(key);
+	}
+
+	/**
+	 * Returns the shared instance of a tag value if it is a common value. 
+	 * Short values are added to the global value dictionary until it is full.
+	 * 
+	 * @param value
+	 *            The value of the tag
+	 * @return The shared instance or the given value
+	 */
+	public static String internValue(String value) {
+		if (value.length() > MAX_COMMON_VALUE_LENGTH) {
+			return value;
+		}
+		return valueDictionary.intern(value);
+	}
 
 	/**
 	 * Lazy creation of the arrays.
 	 */
 	private void createArrays() {
 		if (!hasArrays()) {
-			keys = new ArrayList<String>();
-			values = new ArrayList<String>();
+			keys = new int[4];
+			values = new String[4];
 		}
 	}
 
@@ -70,9 +111,23 @@ public class Tags implements Iterable<String>, Externalizable {
 			return -1;
 		}
 
+		// Unknown keys can't be in any tags
+		int keyId = keyDictionary.getId(key);
+		if (keyId == -1) {
+			return -1;
+		}
+		return indexForKeyId(keyId);
+	}
+
+	/**
+	 * @param keyId
+	 *            The ID of the key of the tag
+	 * @return The index of the tag or -1 if the tag doesn't exist
+	 */
+	private int indexForKeyId(int keyId) {
 		// Iterate keys
-		for (int i = 0; i < keys.size(); i++) {
-			if (keys.get(i).equals(key)) {
+		for (int i = 0; i < size; i++) {
+			if (keys[i] == keyId) {
 				return i;
 			}
 		}
@@ -115,7 +170,7 @@ public class Tags implements Iterable<String>, Externalizable {
 		if (index == -1) {
 			return false;
 		}
-		return values.get(index).equals(value);
+		return values[index].equals(value);
 	}
 
 	/**
@@ -127,7 +182,7 @@ public class Tags implements Iterable<String>, Externalizable {
 	public String get(String key) {
 		int index = indexForKey(key);
 		if (index != -1) {
-			return values.get(index);
+			return values[index];
 		}
 		return null;
 	}
@@ -142,18 +197,36 @@ public class Tags implements Iterable<String>, Externalizable {
 	 *            The value of the tag
 	 */
 	public void set(String key, String value) {
+		set(getKeyId(key), value);
+	}
+
+	/**
+	 * Adds a tags with the given key and value or updates the tag if the key
+	 * already exists.
+	 * 
+	 * @param keyId
+	 *            The ID of the key of the tag, as returned by getKeyId()
+	 * @param value
+	 *            The value of the tag
+	 */
+	public void set(int keyId, String value) {
 		// Create the arrays
 		createArrays();
 
 		// Check if key is present
-		int index = indexForKey(key);
+		int index = indexForKeyId(keyId);
 		if (index == -1) {
 			// Add new tag
-			keys.add(key);
-			values.add(value);
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			keys[size] = keyId;
+			values[size] = value;
+			size++;
 		} else {
 			// Update tag
-			values.set(index, value);
+			values[index] = value;
 		}
 	}
 
@@ -161,10 +234,7 @@ public class Tags implements Iterable<String>, Externalizable {
 	 * @return The number of tags
 	 */
 	public int size() {
-		if (!hasArrays()) {
-			return 0;
-		}
-		return keys.size();
+		return size;
 	}
 
 	/**
@@ -172,11 +242,22 @@ public class Tags implements Iterable<String>, Externalizable {
 	 */
 	@Override
 	public Iterator<String> iterator() {
-		if (!hasArrays()) {
-			return new ArrayList<String>().iterator();
-		} else {
-			return keys.iterator();
-		}
+		return new Iterator<String>() {
+			private int index = 0;
+
+			@Override
+			public boolean hasNext() {
+				return index < size;
+			}
+
+			@Override
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return keyDictionary.get(keys[index++]);
+			}
+		};
 	}
 
 	/**
@@ -191,7 +272,7 @@ public class Tags implements Iterable<String>, Externalizable {
 		String str = "";
 		str += "[" + "\n";
 		for (int i = 0; i < size(); i++) {
-			str += "\t" + "{ key: \"" + keys.get(i) + "\", value: \"" + values.get(i) + "\" }" + "\n";
+			str += "\t" + "{ key: \"" + keyDictionary.get(keys[i]) + "\", value: \"" + values[i] + "\" }" + "\n";
 		}
 		str += "]";
 		return str;
@@ -202,17 +283,25 @@ public class Tags implements Iterable<String>, Externalizable {
 	 */
 	@Override
 	public void writeExternal(ObjectOutput out) throws IOException {
-		out.writeObject(keys);
-		out.writeObject(values);
+		// The key IDs are only valid in this process, so the keys are written
+		// as strings
+		out.writeInt(size);
+		for (int i = 0; i < size; i++) {
+			out.writeUTF(keyDictionary.get(keys[i]));
+			out.writeUTF(values[i]);
+		}
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-		keys = (List<String>)in.readObject();
-		values = (List<String>)in.readObject();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			String key = in.readUTF();
+			String value = in.readUTF();
+			set(key, internValue(value));
+		}
 	}
 }
@@ -27,6 +27,7 @@ package net.morbz.osmonaut.osm;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.ArrayList;
 import java.util.List;
 
 import net.morbz.osmonaut.geometry.Bounds;
@@ -40,6 +41,7 @@ import net.morbz.osmonaut.util.StringUtil;
  */
 public class Way extends Entity {
 	private List<Node> nodes;
+	private long[] nodeIds;
 
 	/**
 	 * @param id
@@ -54,6 +56,22 @@ public class Way extends Entity {
 		this.nodes = nodes;
 	}
 
+	/**
+	 * Creates a way whose nodes have not been resolved yet. Only the IDs of
+	 * the nodes are stored, which is much more compact than node objects.
+	 * 
+	 * @param id
+	 *            The OSM-ID of this way
+	 * @param tags
+	 *            The tags of this way
+	 * @param nodeIds
+	 *            The IDs of the nodes of this way
+	 */
+	public Way(long id, Tags tags, long[] nodeIds) {
+		super(id, tags);
+		this.nodeIds = nodeIds;
+	}
+
 	/**
 	 * No-arg constructor for Externalizable
 	 */
@@ -65,9 +83,39 @@ public class Way extends Entity {
 	 * @return The nodes of this way
 	 */
 	public List<Node> getNodes() {
+		if (nodes == null && nodeIds != null) {
+			// Create nodes without tags and coordinates for unresolved ways
+			List<Node> placeholders = new ArrayList<Node>(nodeIds.length);
+			for (long nodeId : nodeIds) {
+				placeholders.add(new Node(nodeId, null, null));
+			}
+			return placeholders;
+		}
 		return nodes;
 	}
 
+	/**
+	 * @return The IDs of the nodes of this way
+	 */
+	public long[] getNodeIds() {
+		if (nodeIds == null && nodes != null) {
+			long[] ids = new long[nodes.size()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = nodes.get(i).getId();
+			}
+			return ids;
+		}
+		return nodeIds;
+	}
+
+	/**
+	 * @return True if the nodes of this way have been resolved, so that they
+	 *         have coordinates
+	 */
+	public boolean isResolved() {
+		return nodeIds == null;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -92,7 +140,7 @@ public class Way extends Entity {
 	@Override
 	public Bounds getBounds() {
 		Bounds bounds = new Bounds();
-		for (Node node : nodes) {
+		for (Node node : getNodes()) {
 			bounds.extend(node.getLatlon());
 		}
 		return bounds;
@@ -105,6 +153,12 @@ public class Way extends Entity {
 	 * @return True if the way is closed
 	 */
 	public boolean isClosed() {
+		if (nodeIds != null) {
+			if (nodeIds.length <= 2) {
+				return false;
+			}
+			return nodeIds[0] == nodeIds[nodeIds.length - 1];
+		}
 		if (nodes.size() <= 2) {
 			return false;
 		}
@@ -121,7 +175,7 @@ public class Way extends Entity {
 		str += "\t" + "id: " + id + "\n";
 		str += "\t" + "tags: " + StringUtil.indent(getTags().toString());
 		str += "\t" + "nodes: [" + "\n";
-		for (Node node : nodes) {
+		for (Node node : getNodes()) {
 			str += StringUtil.indent(StringUtil.indent(node.toString()));
 		}
 		str += "\t" + "]" + "\n";
@@ -137,6 +191,7 @@ public class Way extends Entity {
 		super.writeExternal(out);
 
 		out.writeObject(nodes);
+		out.writeObject(nodeIds);
 	}
 
 	/**
@@ -148,5 +203,6 @@ public class Way extends Entity {
 		super.readExternal(in);
 
 		nodes = (List<Node>)in.readObject();
+		nodeIds = (long[])in.readObject();
 	}
 }
@@ -0,0 +1,105 @@
+package net.morbz.osmonaut.util;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+/**
+ * Functions for arrays of longs.
+ */
+public class LongArrays {
+	private static final int INSERTION_SORT_SIZE = 16;
+
+	/**
+	 * Sorts the keys in ascending order and moves the values along with their
+	 * keys. Uses quicksort, recursion only happens for the smaller partition,
+	 * so the stack depth stays logarithmic.
+	 * 
+	 * @param keys The keys to sort by
+	 * @param values The values with the same index as their keys
+	 * @param fromIndex The first index to sort, inclusive
+	 * @param toIndex The last index to sort, exclusive
+	 */
+	public static void sort(long[] keys, long[] values, int fromIndex, int toIndex) {
+		sortRange(keys, values, fromIndex, toIndex - 1);
+	}
+
+	private static void sortRange(long[] keys, long[] values, int low, int high) {
+		while(high - low >= INSERTION_SORT_SIZE) {
+			// Median of three as pivot
+			int mid = (low + high) >>> 1;
+			if(keys[mid] < keys[low]) {
+				swap(keys, values, mid, low);
+			}
+			if(keys[high] < keys[low]) {
+				swap(keys, values, high, low);
+			}
+			if(keys[high] < keys[mid]) {
+				swap(keys, values, high, mid);
+			}
+			long pivot = keys[mid];
+
+			// Partition
+			int i = low;
+			int j = high;
+			while(i <= j) {
+				while(keys[i] < pivot) {
+					i++;
+				}
+				while(keys[j] > pivot) {
+					j--;
+				}
+				if(i <= j) {
+					swap(keys, values, i, j);
+					i++;
+					j--;
+				}
+			}
+
+			if(j - low < high - i) {
+				sortRange(keys, values, low, j);
+				low = i;
+			} else {
+				sortRange(keys, values, i, high);
+				high = j;
+			}
+		}
+
+		// Insertion sort for small ranges
+		for(int i = low + 1; i <= high; i++) {
+			for(int j = i; j > low && keys[j - 1] > keys[j]; j--) {
+				swap(keys, values, j, j - 1);
+			}
+		}
+	}
+
+	private static void swap(long[] keys, long[] values, int i, int j) {
+		long key = keys[i];
+		keys[i] = keys[j];
+		keys[j] = key;
+
+		long value = values[i];
+		values[i] = values[j];
+		values[j] = value;
+	}
+}
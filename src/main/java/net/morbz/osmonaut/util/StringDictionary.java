@@ -0,0 +1,133 @@
+package net.morbz.osmonaut.util;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns consecutive IDs to strings, so that every string is only stored
+ * once and can be compared by its ID. Strings are never removed. The
+ * dictionary can be used by multiple threads at the same time.
+ */
+public class StringDictionary {
+	private ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] strings = new String[256];
+	private int size = 0;
+	private int maxSize;
+
+	/**
+	 * Creates a dictionary without a size limit.
+	 */
+	public StringDictionary() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxSize The maximum number of strings in this dictionary. Once
+	 * reached no further strings are added.
+	 */
+	public StringDictionary(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param string The string
+	 * @return The ID of the string or -1 if the string is not in the
+	 * dictionary
+	 */
+	public int getId(String string) {
+		Integer id = ids.get(string);
+		if(id == null) {
+			return -1;
+		}
+		return id;
+	}
+
+	/**
+	 * Adds the string to the dictionary if it's not present yet.
+	 *
+	 * @param string The string
+	 * @return The ID of the string or -1 if the dictionary is full
+	 */
+	public int add(String string) {
+		Integer id = ids.get(string);
+		if(id != null) {
+			return id;
+		}
+
+		synchronized(this) {
+			id = ids.get(string);
+			if(id != null) {
+				return id;
+			}
+			if(size >= maxSize) {
+				return -1;
+			}
+
+			// Add string. The array is stored before the ID is published, so
+			// that every thread that sees the ID also sees the string.
+			String[] newStrings = strings;
+			if(size == newStrings.length) {
+				newStrings = Arrays.copyOf(newStrings, size * 2);
+			}
+			newStrings[size] = string;
+			strings = newStrings;
+			ids.put(string, size);
+			return size++;
+		}
+	}
+
+	/**
+	 * @param id The ID of a string in this dictionary
+	 * @return The string with the given ID
+	 */
+	public String get(int id) {
+		return strings[id];
+	}
+
+	/**
+	 * Returns the instance of the string that is stored in the dictionary. The
+	 * string is added if the dictionary is not full yet.
+	 *
+	 * @param string The string
+	 * @return The stored instance or the given string if the dictionary is
+	 * full
+	 */
+	public String intern(String string) {
+		int id = add(string);
+		if(id == -1) {
+			return string;
+		}
+		return get(id);
+	}
+
+	/**
+	 * @return The number of strings in the dictionary
+	 */
+	public synchronized int size() {
+		return size;
+	}
+}
@@ -0,0 +1,52 @@
+package net.morbz.osmonaut.util;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Functions for temporary files.
+ */
+public class TempFiles {
+	/**
+	 * Creates a temporary file that is deleted right away. The file can
+	 * already be deleted on most systems, it stays accessible until the
+	 * channel is closed, which also frees its disk space.
+	 * 
+	 * @param prefix The prefix of the file name
+	 * @return The channel of the file for reading and writing
+	 * @throws IOException If the file can't be created
+	 */
+	public static FileChannel openDeletedFile(String prefix) throws IOException {
+		File file = File.createTempFile(prefix, ".tmp");
+		file.deleteOnExit();
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		file.delete();
+		return channel;
+	}
+}
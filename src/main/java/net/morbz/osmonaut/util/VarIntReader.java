@@ -0,0 +1,103 @@
+package net.morbz.osmonaut.util;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads values from a byte array that have been written by VarIntWriter.
+ */
+public class VarIntReader {
+	private byte[] buffer;
+	private int position;
+
+	/**
+	 * @param buffer The array to read from
+	 * @param offset The position of the first value in the array
+	 */
+	public VarIntReader(byte[] buffer, int offset) {
+		this.buffer = buffer;
+		this.position = offset;
+	}
+
+	/**
+	 * @return The next unsigned value
+	 */
+	public long readVarLong() {
+		long value = 0;
+		int shift = 0;
+		while(true) {
+			byte b = buffer[position++];
+			value |= (long)(b & 0x7F) << shift;
+			if(b >= 0) {
+				return value;
+			}
+			shift += 7;
+		}
+	}
+
+	/**
+	 * @return The next unsigned value as int
+	 */
+	public int readVarInt() {
+		return (int)readVarLong();
+	}
+
+	/**
+	 * @return The next signed value
+	 */
+	public long readSignedVarLong() {
+		long value = readVarLong();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * @return The next double
+	 */
+	public double readDouble() {
+		long bits = 0;
+		for(int i = 0; i < 8; i++) {
+			bits |= (long)(buffer[position++] & 0xFF) << (i * 8);
+		}
+		return Double.longBitsToDouble(bits);
+	}
+
+	/**
+	 * @return The next string
+	 */
+	public String readString() {
+		int length = readVarInt();
+		String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+		position += length;
+		return value;
+	}
+
+	/**
+	 * @return The position of the next value in the array
+	 */
+	public int getPosition() {
+		return position;
+	}
+}
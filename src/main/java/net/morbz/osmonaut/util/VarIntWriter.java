@@ -0,0 +1,147 @@
+package net.morbz.osmonaut.util;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes variable-length encoded values into a growable byte array. Small 
+ * values take less bytes, signed values are zigzag encoded, so that small
+ * negative values are small as well. The writer can be reused by calling
+ * reset().
+ */
+public class VarIntWriter {
+	private byte[] buffer;
+	private int position = 0;
+
+	/**
+	 * Creates a new writer.
+	 */
+	public VarIntWriter() {
+		this(64);
+	}
+
+	/**
+	 * @param capacity The initial capacity in bytes
+	 */
+	public VarIntWriter(int capacity) {
+		buffer = new byte[capacity];
+	}
+
+	/**
+	 * Writes an unsigned value.
+	 * 
+	 * @param value The value, negative values take 10 bytes
+	 */
+	public void writeVarLong(long value) {
+		ensureCapacity(10);
+		while((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte)value;
+	}
+
+	/**
+	 * Writes a signed value.
+	 * 
+	 * @param value The value
+	 */
+	public void writeSignedVarLong(long value) {
+		writeVarLong((value << 1) ^ (value >> 63));
+	}
+
+	/**
+	 * Writes a double with all 8 bytes.
+	 * 
+	 * @param value The value
+	 */
+	public void writeDouble(double value) {
+		long bits = Double.doubleToRawLongBits(value);
+		ensureCapacity(8);
+		for(int i = 0; i < 8; i++) {
+			buffer[position++] = (byte)(bits >>> (i * 8));
+		}
+	}
+
+	/**
+	 * Writes bytes without a length.
+	 * 
+	 * @param bytes The array that holds the bytes
+	 * @param count The number of bytes to write from the start of the array
+	 */
+	public void writeBytes(byte[] bytes, int count) {
+		ensureCapacity(count);
+		System.arraycopy(bytes, 0, buffer, position, count);
+		position += count;
+	}
+
+	/**
+	 * Writes a string as length-prefixed UTF-8.
+	 * 
+	 * @param value The string
+	 */
+	public void writeString(String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(bytes.length);
+		writeBytes(bytes, bytes.length);
+	}
+
+	/**
+	 * @return The array that holds the written bytes. Only the first size()
+	 * bytes are valid.
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return The number of written bytes
+	 */
+	public int size() {
+		return position;
+	}
+
+	/**
+	 * @return A copy of the written bytes
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, position);
+	}
+
+	/**
+	 * Discards all written bytes.
+	 */
+	public void reset() {
+		position = 0;
+	}
+
+	private void ensureCapacity(int bytes) {
+		if(position + bytes > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(position + bytes, buffer.length * 2));
+		}
+	}
+}
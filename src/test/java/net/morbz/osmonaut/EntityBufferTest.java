@@ -0,0 +1,32 @@
+package net.morbz.osmonaut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import net.morbz.osmonaut.osm.Tags;
+import net.morbz.osmonaut.osm.Way;
+
+public class EntityBufferTest {
+	@Test
+	public void should_give_up_when_estimated_size_exceeds_capacity() throws Exception {
+		Way shortWay = new Way(1, new Tags(), new long[2]);
+		Way longWay = new Way(2, new Tags(), new long[1000]);
+		long shortSize = EntityBuffer.getMemorySize(shortWay);
+		assertThat(EntityBuffer.getMemorySize(longWay)).isGreaterThan(shortSize + 1000 * 7);
+
+		EntityBuffer<Way> buffer = new EntityBuffer<Way>(shortSize * 10);
+		buffer.add(shortWay);
+		buffer.add(shortWay);
+		assertThat(buffer.isComplete()).isTrue();
+		assertThat(buffer.getMemorySize()).isEqualTo(shortSize * 2);
+
+		// The long way doesn't fit, so the kept ways are dropped at once
+		buffer.add(longWay);
+		assertThat(buffer.isComplete()).isFalse();
+		assertThat(buffer.getMemorySize()).isZero();
+		buffer.add(shortWay);
+		assertThat(buffer.size()).isZero();
+		assertThat(buffer.takeEntities()).isNull();
+	}
+}
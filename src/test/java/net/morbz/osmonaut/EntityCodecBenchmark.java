@@ -0,0 +1,102 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import net.morbz.osmonaut.osm.Entity;
+
+/**
+ * Compares the speed and size of EntityCodec with Java serialization, which
+ * was used by the disk caches before. Every entity is encoded and decoded on
+ * its own, like in a cache. Run with the path of a PBF file as argument, 
+ * otherwise the test file is used.
+ */
+public class EntityCodecBenchmark {
+	private static final int warmupRounds = 5;
+	private static final int rounds = 20;
+
+	public static void main(String[] args) throws Exception {
+		List<Entity> entities;
+		if (args.length > 0) {
+			entities = EntityCodecTest.readEntities(args[0]);
+		} else {
+			entities = EntityCodecTest.readEntities();
+		}
+
+		for (int i = 0; i < warmupRounds; i++) {
+			roundTripSerialization(entities);
+			roundTripCodec(entities);
+		}
+
+		long serializationTime = 0;
+		long codecTime = 0;
+		long serializationSize = 0;
+		long codecSize = 0;
+		for (int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+			serializationSize = roundTripSerialization(entities);
+			serializationTime += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			codecSize = roundTripCodec(entities);
+			codecTime += System.nanoTime() - start;
+		}
+
+		System.out.println("Entities:      " + entities.size());
+		System.out.println("Serialization: " + (serializationTime / rounds / 1000) + " us/round, "
+				+ serializationSize + " bytes");
+		System.out.println("Codec:         " + (codecTime / rounds / 1000) + " us/round, " + codecSize + " bytes");
+	}
+
+	private static long roundTripSerialization(List<Entity> entities) throws Exception {
+		long size = 0;
+		for (Entity entity : entities) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(entity);
+			out.close();
+			size += bytes.size();
+
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			in.readObject();
+		}
+		return size;
+	}
+
+	private static long roundTripCodec(List<Entity> entities) {
+		long size = 0;
+		for (Entity entity : entities) {
+			byte[] bytes = EntityCodec.encode(entity);
+			size += bytes.length;
+			EntityCodec.decode(bytes);
+		}
+		return size;
+	}
+}
@@ -0,0 +1,116 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.morbz.osmonaut.osm.Entity;
+import net.morbz.osmonaut.osm.EntityType;
+import net.morbz.osmonaut.osm.LatLon;
+import net.morbz.osmonaut.osm.Node;
+import net.morbz.osmonaut.osm.Relation;
+import net.morbz.osmonaut.osm.RelationMember;
+import net.morbz.osmonaut.osm.Tags;
+import net.morbz.osmonaut.osm.Way;
+
+public class EntityCodecTest {
+	@Test
+	public void should_encode_unresolved_entities() throws Exception {
+		Tags tags = new Tags();
+		tags.set("type", "multipolygon");
+		Way way = new Way(-3, null, new long[] { 5, 3, 9000000000L, -1, 5 });
+		Relation relation = new Relation(7, tags, new long[] { 1, 2, 379422 },
+				new byte[] { (byte)EntityType.NODE.ordinal(), (byte)EntityType.WAY.ordinal(),
+						(byte)EntityType.RELATION.ordinal() },
+				new int[] { Relation.getRoleId("outer"), Relation.getRoleId(""), Relation.getRoleId("inner") });
+
+		assertThat(EntityCodec.decode(EntityCodec.encode(way))).isEqualToComparingFieldByFieldRecursively(way);
+		assertThat(EntityCodec.decode(EntityCodec.encode(relation)))
+				.isEqualToComparingFieldByFieldRecursively(relation);
+	}
+
+	@Test
+	public void should_encode_assembled_entities() throws Exception {
+		Tags tags = new Tags();
+		tags.set("highway", "traffic_signals");
+		Node node = new Node(3, tags, new LatLon(-89.9999999, -179.9999999));
+		List<Node> nodes = new ArrayList<Node>();
+		nodes.add(new Node(5, null, new LatLon(48.887131700000005, 2.252968)));
+		nodes.add(node);
+		nodes.add(new Node(4, null, new LatLon(0.123456789, 1)));
+		nodes.add(new Node(6, null, null));
+		Way way = new Way(2, null, nodes);
+		List<RelationMember> members = new ArrayList<RelationMember>();
+		members.add(new RelationMember(way, "outer"));
+		members.add(new RelationMember(node, ""));
+		Relation relation = new Relation(1, null, members, true);
+
+		assertThat(EntityCodec.decode(EntityCodec.encode(node))).isEqualToComparingFieldByFieldRecursively(node);
+		assertThat(EntityCodec.decode(EntityCodec.encode(way))).isEqualToComparingFieldByFieldRecursively(way);
+		assertThat(EntityCodec.decode(EntityCodec.encode(relation)))
+				.isEqualToComparingFieldByFieldRecursively(relation);
+	}
+
+	@Test
+	public void should_encode_scanned_entities() throws Exception {
+		for (Entity entity : readEntities()) {
+			assertThat(EntityCodec.decode(EntityCodec.encode(entity)))
+					.isEqualToComparingFieldByFieldRecursively(entity);
+		}
+	}
+
+	/**
+	 * @return All assembled entities of the test file
+	 */
+	static List<Entity> readEntities() {
+		return readEntities(EntityCodecTest.class.getResource("/concorde-paris.osm.pbf").getPath());
+	}
+
+	/**
+	 * @param file The path of the PBF file
+	 * @return All assembled entities of the file
+	 */
+	static List<Entity> readEntities(String file) {
+		final List<Entity> entities = new ArrayList<Entity>();
+		Osmonaut osmonaut = new Osmonaut(file, new EntityFilter(true, true, true));
+		osmonaut.scan(new IOsmonautReceiver() {
+			@Override
+			public boolean needsEntity(EntityType type, Tags tags) {
+				return true;
+			}
+
+			@Override
+			public void foundEntity(Entity entity) {
+				entities.add(entity);
+			}
+		});
+		return entities;
+	}
+}
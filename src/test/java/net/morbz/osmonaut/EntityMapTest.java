@@ -0,0 +1,229 @@
+package net.morbz.osmonaut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.morbz.osmonaut.osm.LatLon;
+import net.morbz.osmonaut.osm.Node;
+import net.morbz.osmonaut.osm.Tags;
+import net.morbz.osmonaut.osm.Way;
+
+public class EntityMapTest {
+	@Test
+	public void should_store_node_locations() throws Exception {
+		should_store_nodes(new NodeLocationMap());
+	}
+
+	@Test
+	public void should_store_mapped_node_locations() throws Exception {
+		should_store_nodes(new MappedNodeLocationMap(new MemoryEntityMap<Node>()));
+	}
+
+	@Test
+	public void should_store_sorted_node_locations() throws Exception {
+		should_store_nodes(new SortedNodeLocationMap());
+	}
+
+	@Test
+	public void should_reopen_node_location_file() throws Exception {
+		File pbfFile = File.createTempFile("osmonaut-test", ".pbf");
+		File file = new File(pbfFile.getPath() + ".nodes");
+		try {
+			NodeLocationFile locationFile = new NodeLocationFile(file, pbfFile);
+			MappedNodeLocationMap map = locationFile.create();
+			map.putLocation(1, new LatLon(48.887131700000005, 2.252968));
+			map.putLocation(300000000, new LatLon(-89.9999999, -179.9999999));
+
+			// Incomplete files are not used
+			assertThat(new NodeLocationFile(file, pbfFile).open()).isNull();
+			locationFile.complete();
+			locationFile.close();
+
+			// A new file doesn't replace the complete file until it is
+			// complete itself
+			NodeLocationFile newLocationFile = new NodeLocationFile(file, pbfFile);
+			newLocationFile.create().putLocation(1, new LatLon(1, 1));
+			NodeLocationFile oldLocationFile = new NodeLocationFile(file, pbfFile);
+			assertThat(oldLocationFile.open().get(1).getLatlon()).isEqualTo(new LatLon(48.887131700000005, 2.252968));
+			oldLocationFile.close();
+			newLocationFile.close();
+			assertThat(file.getParentFile().list(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.startsWith(file.getName() + ".");
+				}
+			})).isEmpty();
+
+			locationFile = new NodeLocationFile(file, pbfFile);
+			map = locationFile.open();
+			assertThat(map.get(1).getLatlon()).isEqualTo(new LatLon(48.887131700000005, 2.252968));
+			assertThat(map.get(300000000).getLatlon()).isEqualTo(new LatLon(-89.9999999, -179.9999999));
+			assertThat(map.get(2)).isNull();
+			assertThat(map.get(300000001)).isNull();
+			assertThat(map.get(600000000)).isNull();
+			assertThat(map.get(30000000000L)).isNull();
+			locationFile.close();
+		} finally {
+			file.delete();
+			pbfFile.delete();
+		}
+	}
+
+	@Test
+	public void should_sort_node_locations() throws Exception {
+		SortedNodeLocationMap map = new SortedNodeLocationMap();
+		for (int i = 0; i < 5000; i++) {
+			// Add IDs out of order
+			long id = (i * 7919L) % 5000;
+			map.add(new Node(id, null, new LatLon(id / 100d, 1)));
+		}
+		for (long id = 0; id < 5000; id++) {
+			assertThat(map.get(id).getLatlon()).isEqualTo(new LatLon(id / 100d, 1));
+		}
+		assertThat(map.get(5000)).isNull();
+	}
+
+	@Test
+	public void should_store_ways_in_log() throws Exception {
+		Tags wayTags = new Tags();
+		wayTags.set("highway", "residential");
+		wayTags.set("name", "Rue de la Paix");
+		Tags nodeTags = new Tags();
+		nodeTags.set("highway", "traffic_signals");
+		List<Node> nodes = new ArrayList<Node>();
+		nodes.add(new Node(5, null, new LatLon(48.887131700000005, 2.252968)));
+		nodes.add(new Node(3, nodeTags, new LatLon(-89.9999999, -179.9999999)));
+		nodes.add(new Node(9000000000L, null, new LatLon(0.123456789, 1)));
+		nodes.add(new Node(4, null, null));
+		nodes.add(new Node(5, null, new LatLon(48.887131700000005, 2.252968)));
+
+		WayLogMap map = new WayLogMap();
+		Way[] ways = { 
+				new Way(2, wayTags, nodes),
+				new Way(1, null, new ArrayList<Node>()),
+				new Way(-7, null, new ArrayList<Node>(nodes.subList(0, 2))) };
+		for (Way way : ways) {
+			map.add(way);
+		}
+		for (Way way : ways) {
+			assertThat(map.get(way.getId())).isEqualToComparingFieldByFieldRecursively(way);
+		}
+		assertThat(map.get(3)).isNull();
+
+		map.remove(2);
+		assertThat(map.get(2)).isNull();
+		assertThat(map.get(1)).isEqualToComparingFieldByFieldRecursively(ways[1]);
+	}
+
+	@Test
+	public void should_sort_entities_in_buckets() throws Exception {
+		MemoryEntityMap<Node> map = new MemoryEntityMap<Node>();
+		for (int i = 0; i < 5000; i++) {
+			// Add IDs out of order to several buckets
+			long id = (i * 7919L) % 5000 * 1000;
+			map.add(new Node(id, null, new LatLon(id / 100000d, 1)));
+		}
+		for (long id = 0; id < 5000 * 1000; id += 1000) {
+			assertThat(map.get(id).getLatlon()).isEqualTo(new LatLon(id / 100000d, 1));
+			assertThat(map.get(id + 1)).isNull();
+		}
+	}
+
+	@Test
+	public void should_remove_entities() throws Exception {
+		MemoryEntityMap<Node> map = new MemoryEntityMap<Node>();
+		for (long id = 0; id < 5000; id++) {
+			map.add(new Node(id, null, new LatLon(id / 100d, 1)));
+		}
+
+		// Removing more than half of the entities also removes the gaps
+		for (long id = 0; id < 5000; id++) {
+			if (id % 3 != 0) {
+				map.remove(id);
+			}
+		}
+		for (long id = 0; id < 5000; id++) {
+			if (id % 3 == 0) {
+				assertThat(map.get(id).getLatlon()).isEqualTo(new LatLon(id / 100d, 1));
+			} else {
+				assertThat(map.get(id)).isNull();
+			}
+		}
+	}
+
+	@Test
+	public void should_spill_entities() throws Exception {
+		Tags tags = new Tags();
+		tags.set("railway", "subway_entrance");
+		SpillingEntityMap<Node> map = new SpillingEntityMap<Node>(100000);
+		for (int i = 0; i < 50000; i++) {
+			// Swap neighboring IDs
+			long id = i ^ 1;
+			map.add(new Node(id, tags, new LatLon(id / 1000d, 1)));
+		}
+		for (long id = 0; id < 50000; id += 7) {
+			map.remove(id);
+		}
+
+		for (long id = 0; id < 50000; id++) {
+			if (id % 7 == 0) {
+				assertThat(map.get(id)).isNull();
+			} else {
+				assertThat(map.get(id).getLatlon()).isEqualTo(new LatLon(id / 1000d, 1));
+			}
+		}
+		assertThat(map.get(1)).isEqualToComparingFieldByFieldRecursively(new Node(1, tags, new LatLon(0.001, 1)));
+		assertThat(map.get(50000)).isNull();
+	}
+
+	@Test
+	public void should_release_referenced_entities() throws Exception {
+		EntityCache<Node> cache = new EntityCache<Node>(new NodeLocationMap());
+		cache.enableReferenceCounting();
+		cache.addNeeded(1);
+		cache.addNeeded(1);
+		cache.addNeeded(2);
+		cache.addEntity(new Node(1, null, new LatLon(1, 2)));
+		cache.addEntity(new Node(2, null, new LatLon(3, 4)));
+
+		assertThat(cache.release(1)).isFalse();
+		assertThat(cache.getEntity(1)).isNotNull();
+		assertThat(cache.release(1)).isTrue();
+		assertThat(cache.getEntity(1)).isNull();
+		assertThat(cache.release(2)).isTrue();
+		assertThat(cache.getEntity(2)).isNull();
+	}
+
+	private void should_store_nodes(EntityMap<Node> map) {
+		Tags tags = new Tags();
+		tags.set("railway", "subway_entrance");
+		Node[] nodes = { 
+				new Node(1, null, new LatLon(48.887131700000005, 2.252968)),
+				new Node(2, tags, new LatLon(48.8861514, 2.2561025000000003)),
+				new Node(3, null, new LatLon(0, 0)),
+				new Node(4, null, new LatLon(-89.9999999, -179.9999999)),
+				new Node(5, null, new LatLon(0.123456789, 1)),
+				new Node(9000000000L, null, new LatLon(48.867002500000005, 2.3217243)),
+				new Node(-1, null, new LatLon(1, 2)) };
+		for (Node node : nodes) {
+			map.add(node);
+		}
+
+		for (Node node : nodes) {
+			assertThat(map.get(node.getId())).isEqualToComparingFieldByFieldRecursively(node);
+		}
+		assertThat(map.get(6)).isNull();
+		assertThat(map.get(9000000001L)).isNull();
+
+		for (Node node : nodes) {
+			map.remove(node.getId());
+			assertThat(map.get(node.getId())).isNull();
+		}
+	}
+}
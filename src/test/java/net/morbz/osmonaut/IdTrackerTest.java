@@ -0,0 +1,91 @@
+package net.morbz.osmonaut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class IdTrackerTest {
+	private static final long[] IDS = { 0, 1, 63, 64, 32767, 32768, 4000000000L, 1L << 35, Long.MAX_VALUE, -1,
+			Long.MIN_VALUE };
+
+	@Test
+	public void should_track_ids_of_full_range() throws Exception {
+		should_track_ids_of_full_range(new BitmapIdTracker());
+		should_track_ids_of_full_range(new CompressedIdTracker());
+		should_track_ids_of_full_range(new ConcurrentIdTracker());
+	}
+
+	@Test
+	public void should_track_ids_concurrently() throws Exception {
+		final ConcurrentIdTracker tracker = new ConcurrentIdTracker();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					// All threads set the same IDs
+					for (long id = 0; id < 200000; id += 3) {
+						tracker.set(id);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertThat(tracker.size()).isEqualTo(66667);
+		for (long id = 0; id < 200000; id++) {
+			assertThat(tracker.get(id)).isEqualTo(id % 3 == 0);
+		}
+	}
+
+	@Test
+	public void should_compress_ids() throws Exception {
+		CompressedIdTracker tracker = new CompressedIdTracker();
+		BitmapIdTracker expected = new BitmapIdTracker();
+		for (long id = 0; id < 300000; id++) {
+			// Sparse, dense and consecutive ranges
+			if ((id < 100000 && id % 97 == 0) || (id >= 100000 && id < 200000 && id % 3 != 0) || id >= 250000) {
+				tracker.set(id);
+				expected.set(id);
+			}
+		}
+		long memorySize = tracker.getMemorySize();
+		tracker.optimize();
+		assertThat(tracker.getMemorySize()).isLessThan(memorySize);
+		assertThat(tracker.size()).isEqualTo(expected.size());
+		for (long id = 0; id < 300000; id++) {
+			assertThat(tracker.get(id)).isEqualTo(expected.get(id));
+		}
+
+		// Modify run containers
+		tracker.unset(260000);
+		tracker.set(240000);
+		assertThat(tracker.get(260000)).isFalse();
+		assertThat(tracker.get(260001)).isTrue();
+		assertThat(tracker.get(240000)).isTrue();
+		assertThat(tracker.size()).isEqualTo(expected.size());
+	}
+
+	private void should_track_ids_of_full_range(IdTracker tracker) {
+		assertThat(tracker.isEmpty()).isTrue();
+
+		for (long id : IDS) {
+			tracker.set(id);
+			tracker.set(id);
+		}
+		assertThat(tracker.size()).isEqualTo(IDS.length);
+		for (long id : IDS) {
+			assertThat(tracker.get(id)).isTrue();
+			assertThat(tracker.get(id ^ 2)).isFalse();
+		}
+
+		for (long id : IDS) {
+			tracker.unset(id);
+			assertThat(tracker.get(id)).isFalse();
+		}
+		assertThat(tracker.isEmpty()).isTrue();
+	}
+}
@@ -1,13 +1,21 @@
 package net.morbz.osmonaut;
 
 import static net.morbz.osmonaut.osm.EntityType.NODE;
+import static net.morbz.osmonaut.osm.EntityType.RELATION;
 import static net.morbz.osmonaut.osm.EntityType.WAY;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.assertj.core.api.Assertions.tuple;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Predicate;
 
+import org.assertj.core.api.ThrowableAssert.ThrowingCallable;
+import org.assertj.core.groups.Tuple;
 import org.junit.Test;
 
 import net.morbz.osmonaut.osm.Entity;
@@ -66,6 +74,149 @@ public class OsmonautTest {
 		assertThat(concorde.getMembers()).filteredOn(only(WAY)).hasSize(4);
 	}
 
+	@Test
+	public void should_find_relations_with_tag_filter() throws Exception {
+		TagFilter tagFilter = new TagFilter().addKeyValue("public_transport", "stop_area");
+		List<Relation> relations = scan(new EntityFilter(false, false, true), tagFilter, new Predicate<Tags>() {
+			@Override
+			public boolean test(Tags tags) {
+				return tags.hasKeyValue("name", "Concorde");
+			}
+		});
+		assertThat(relations).hasSize(1);
+
+		Relation concorde = relations.get(0);
+		assertThat(concorde.getId()).isEqualTo(379422);
+		assertThat(concorde.getMembers()).filteredOn(only(NODE)).hasSize(13);
+		assertThat(concorde.getMembers()).filteredOn(only(WAY)).hasSize(4);
+	}
+
+	@Test
+	public void should_reuse_discovered_entities() throws Exception {
+		String file = OsmonautTest.class.getResource("/concorde-paris.osm.pbf").getPath();
+		final List<Entity> acc = new ArrayList<>();
+		Osmonaut osmonaut = new Osmonaut(file, new EntityFilter());
+		osmonaut.setTagFilter(NODE, new TagFilter());
+		osmonaut.setTagFilter(WAY, new TagFilter());
+		osmonaut.setTagFilter(RELATION, new TagFilter().addKeyValue("name", "Concorde"));
+		osmonaut.setMemoryBudget(1 << 20);
+
+		// Types with empty tag filters are only scanned for relation members
+		Tuple[] passes = {
+				tuple(RELATION, ScanPlan.Purpose.DISCOVER, false),
+				tuple(WAY, ScanPlan.Purpose.DISCOVER, false),
+				tuple(NODE, ScanPlan.Purpose.ASSEMBLE, false),
+				tuple(WAY, ScanPlan.Purpose.ASSEMBLE, true),
+				tuple(RELATION, ScanPlan.Purpose.ASSEMBLE, true) };
+		assertThat(osmonaut.plan().getPasses()).extracting("type", "purpose", "reused").containsExactly(passes);
+
+		osmonaut.scan(new IOsmonautReceiver() {
+			@Override
+			public boolean needsEntity(EntityType type, Tags tags) {
+				return tags.hasKeyValue("public_transport", "stop_area");
+			}
+
+			@Override
+			public void foundEntity(Entity entity) {
+				acc.add(entity);
+			}
+		});
+		assertThat(acc).extracting("id").containsExactly(379422L);
+
+		ScanPlan plan = osmonaut.getScanPlan();
+		assertThat(plan.getPasses()).extracting("type", "purpose", "reused").containsExactly(passes);
+		assertThat(plan.getFilePassCount()).isEqualTo(3);
+		assertThat(plan.getPasses().get(4).getEntityCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void should_plan_without_unneeded_passes() throws Exception {
+		String file = OsmonautTest.class.getResource("/concorde-paris.osm.pbf").getPath();
+
+		// Ways don't need to be discovered if the receiver only needs nodes
+		Osmonaut osmonaut = new Osmonaut(file, new EntityFilter(true, false, true));
+		osmonaut.setTagFilter(RELATION, new TagFilter());
+		assertThat(osmonaut.plan().getPasses()).extracting("type", "purpose").containsExactly(
+				tuple(NODE, ScanPlan.Purpose.ASSEMBLE));
+
+		// Entities are not reused without a memory budget
+		osmonaut = new Osmonaut(file, new EntityFilter(false, true, true));
+		assertThat(osmonaut.plan().getFilePassCount()).isEqualTo(5);
+
+		// Entities of parallel discovery passes are not reused
+		osmonaut.setMemoryBudget(1 << 20);
+		assertThat(osmonaut.plan().getFilePassCount()).isEqualTo(3);
+		osmonaut.setParallelDiscovery(true);
+		assertThat(osmonaut.plan().getFilePassCount()).isEqualTo(5);
+	}
+
+	@Test
+	public void should_choose_cache_storage_from_memory_budget() throws Exception {
+		List<String> small = scanWithMemoryBudget(1, ScanPlan.Storage.DISK, ScanPlan.Storage.DISK);
+		List<String> medium = scanWithMemoryBudget(200000, ScanPlan.Storage.MEMORY, ScanPlan.Storage.SPILLED);
+		List<String> large = scanWithMemoryBudget(1 << 30, ScanPlan.Storage.MEMORY, ScanPlan.Storage.MEMORY);
+		assertThat(small).isNotEmpty().isEqualTo(large);
+		assertThat(medium).isEqualTo(large);
+	}
+
+	@Test
+	public void should_remove_temporary_files_if_scan_fails() throws Exception {
+		File dir = Files.createTempDirectory("osmonaut-test").toFile();
+		File file = new File(dir, "concorde-paris.osm.pbf");
+		Files.copy(Paths.get(OsmonautTest.class.getResource("/concorde-paris.osm.pbf").toURI()), file.toPath());
+		try {
+			Osmonaut osmonaut = new Osmonaut(file.getPath(), new EntityFilter(true, false, false));
+			osmonaut.setVerbosity(0);
+			osmonaut.setPersistNodeLocations(true);
+			Throwable thrown = catchThrowable(new ThrowingCallable() {
+				@Override
+				public void call() throws Throwable {
+					osmonaut.scan(new IOsmonautReceiver() {
+						@Override
+						public boolean needsEntity(EntityType type, Tags tags) {
+							return true;
+						}
+
+						@Override
+						public void foundEntity(Entity entity) {
+							throw new IllegalStateException("Receiver failed");
+						}
+					});
+				}
+			});
+			assertThat(thrown).isNotNull();
+			assertThat(dir.list()).containsOnly(file.getName());
+		} finally {
+			for (File child : dir.listFiles()) {
+				child.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private List<String> scanWithMemoryBudget(long memoryBudget, ScanPlan.Storage nodeStorage,
+			ScanPlan.Storage wayStorage) {
+		String file = OsmonautTest.class.getResource("/concorde-paris.osm.pbf").getPath();
+		final List<String> acc = new ArrayList<>();
+		Osmonaut osmonaut = new Osmonaut(file, new EntityFilter());
+		osmonaut.setVerbosity(0);
+		osmonaut.setMemoryBudget(memoryBudget);
+		osmonaut.scan(new IOsmonautReceiver() {
+			@Override
+			public boolean needsEntity(EntityType type, Tags tags) {
+				return tags.size() > 0;
+			}
+
+			@Override
+			public void foundEntity(Entity entity) {
+				acc.add(entity.toString());
+			}
+		});
+		assertThat(osmonaut.getScanPlan().getStorage(NODE)).isEqualTo(nodeStorage);
+		assertThat(osmonaut.getScanPlan().getStorage(WAY)).isEqualTo(wayStorage);
+		return acc;
+	}
+
 	private Predicate<RelationMember> only(final EntityType type) {
 		return new Predicate<RelationMember>() {
 			@Override
@@ -76,9 +227,14 @@ public class OsmonautTest {
 	}
 
 	private <T> List<T> scan(EntityFilter filter, final Predicate<Tags> predicate) {
+		return scan(filter, null, predicate);
+	}
+
+	private <T> List<T> scan(EntityFilter filter, TagFilter tagFilter, final Predicate<Tags> predicate) {
 		String file = OsmonautTest.class.getResource("/concorde-paris.osm.pbf").getPath();
 		final List<T> acc = new ArrayList<>();
 		Osmonaut osmonaut = new Osmonaut(file, filter);
+		osmonaut.setTagFilter(tagFilter);
 		osmonaut.scan(new IOsmonautReceiver() {
 			@Override
 			public boolean needsEntity(EntityType type, Tags tags) {
@@ -0,0 +1,48 @@
+package net.morbz.osmonaut.binary.pbf;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import net.morbz.osmonaut.TagFilter;
+
+public class PbfTagFilterTest {
+	@Test
+	public void should_match_duplicated_value_strings() throws Exception {
+		// Strings: 0 = "", 1 = "highway", 2 = "primary", 3 = "primary", 4 = "name"
+		PbfFieldDecoder fieldDecoder = fieldDecoder("", "highway", "primary", "primary", "name");
+		PbfTagFilter.BlockFilter filter = new PbfTagFilter(new TagFilter().addKeyValue("highway", "primary"))
+				.resolve(fieldDecoder);
+
+		assertThat(filter.matches(new int[] { 1 }, new int[] { 2 }, 1)).isTrue();
+		assertThat(filter.matches(new int[] { 1 }, new int[] { 3 }, 1)).isTrue();
+		assertThat(filter.matches(new int[] { 4 }, new int[] { 3 }, 1)).isFalse();
+		assertThat(filter.matches(new int[] { 1 }, new int[] { 4 }, 1)).isFalse();
+	}
+
+	@Test
+	public void should_match_duplicated_key_strings() throws Exception {
+		PbfFieldDecoder fieldDecoder = fieldDecoder("", "name", "highway", "name");
+		PbfTagFilter.BlockFilter filter = new PbfTagFilter(new TagFilter().addKey("name")).resolve(fieldDecoder);
+
+		assertThat(filter.matches(new int[] { 1 }, new int[] { 2 }, 1)).isTrue();
+		assertThat(filter.matches(new int[] { 3 }, new int[] { 2 }, 1)).isTrue();
+		assertThat(filter.matches(new int[] { 2 }, new int[] { 1 }, 1)).isFalse();
+	}
+
+	private PbfFieldDecoder fieldDecoder(String... strings) throws Exception {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		int[] offsets = new int[strings.length];
+		int[] lengths = new int[strings.length];
+		for (int i = 0; i < strings.length; i++) {
+			byte[] utf8 = strings[i].getBytes(StandardCharsets.UTF_8);
+			offsets[i] = data.size();
+			lengths[i] = utf8.length;
+			data.write(utf8);
+		}
+		return new PbfFieldDecoder(data.toByteArray(), offsets, lengths, 100, 0, 0);
+	}
+}
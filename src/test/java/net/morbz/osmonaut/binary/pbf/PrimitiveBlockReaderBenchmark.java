@@ -0,0 +1,136 @@
+package net.morbz.osmonaut.binary.pbf;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock;
+import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup;
+import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup.DenseNodes;
+import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup.Relation;
+import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup.Way;
+import net.morbz.osmonaut.osm.EntityType;
+
+/**
+ * Compares the decoding speed of the PrimitiveBlockReader with the generated
+ * Osmformat classes. Run with the path of a PBF file as argument, otherwise 
+ * the test file is used.
+ */
+public class PrimitiveBlockReaderBenchmark {
+	private static final int warmupRounds = 5;
+	private static final int rounds = 20;
+
+	public static void main(String[] args) throws Exception {
+		List<byte[]> blocks;
+		if (args.length > 0) {
+			blocks = PrimitiveBlockReaderTest.readBlocks(args[0]);
+		} else {
+			blocks = PrimitiveBlockReaderTest.readBlocks();
+		}
+
+		for (int i = 0; i < warmupRounds; i++) {
+			decodeGenerated(blocks);
+			decodeStreaming(blocks);
+		}
+
+		long generatedTime = 0;
+		long streamingTime = 0;
+		long checksum = 0;
+		for (int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+			checksum += decodeGenerated(blocks);
+			generatedTime += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			checksum -= decodeStreaming(blocks);
+			streamingTime += System.nanoTime() - start;
+		}
+
+		System.out.println("Blocks:    " + blocks.size());
+		System.out.println("Generated: " + (generatedTime / rounds / 1000) + " us/round");
+		System.out.println("Streaming: " + (streamingTime / rounds / 1000) + " us/round");
+		if (checksum != 0) {
+			System.out.println("E: Decoders returned different results");
+		}
+	}
+
+	private static long decodeGenerated(List<byte[]> blocks) throws Exception {
+		long sum = 0;
+		for (byte[] data : blocks) {
+			PrimitiveBlock block = PrimitiveBlock.parseFrom(data);
+			String[] strings = new String[block.getStringtable().getSCount()];
+			for (int i = 0; i < strings.length; i++) {
+				strings[i] = block.getStringtable().getS(i).toStringUtf8();
+			}
+
+			for (PrimitiveGroup group : block.getPrimitivegroupList()) {
+				DenseNodes dense = group.getDense();
+				long id = 0;
+				for (int i = 0; i < dense.getIdCount(); i++) {
+					id += dense.getId(i);
+					sum += id + dense.getLat(i) + dense.getLon(i);
+				}
+				for (int keyValue : dense.getKeysValsList()) {
+					sum += keyValue;
+				}
+				for (Way way : group.getWaysList()) {
+					sum += way.getId() + way.getKeysCount();
+					long ref = 0;
+					for (long delta : way.getRefsList()) {
+						ref += delta;
+						sum += ref;
+					}
+				}
+				for (Relation relation : group.getRelationsList()) {
+					sum += relation.getId() + relation.getKeysCount();
+					long memberId = 0;
+					for (long delta : relation.getMemidsList()) {
+						memberId += delta;
+						sum += memberId;
+					}
+				}
+			}
+		}
+		return sum;
+	}
+
+	private static long decodeStreaming(List<byte[]> blocks) throws Exception {
+		final long[] sum = new long[1];
+		for (byte[] data : blocks) {
+			final long[] lastLatLon = new long[2];
+			PrimitiveBlockReader reader = new PrimitiveBlockReader(ByteBuffer.wrap(data));
+			PrimitiveBlockListener listener = new PrimitiveBlockListener() {
+				@Override
+				public void node(long id, long latitude, long longitude, int[] keys, int[] values, int tagCount) {
+					// The generated path sums the deltas of the coordinates
+					sum[0] += id + (latitude - lastLatLon[0]) + (longitude - lastLatLon[1]);
+					lastLatLon[0] = latitude;
+					lastLatLon[1] = longitude;
+					for (int i = 0; i < tagCount; i++) {
+						sum[0] += keys[i] + values[i];
+					}
+				}
+
+				@Override
+				public void way(long id, int[] keys, int[] values, int tagCount, long[] nodeIds) {
+					sum[0] += id + tagCount;
+					for (long nodeId : nodeIds) {
+						sum[0] += nodeId;
+					}
+				}
+
+				@Override
+				public void relation(long id, int[] keys, int[] values, int tagCount, long[] memberIds,
+						byte[] memberTypes, int[] memberRoles) {
+					sum[0] += id + tagCount;
+					for (long memberId : memberIds) {
+						sum[0] += memberId;
+					}
+				}
+			};
+			for (EntityType type : EntityType.values()) {
+				reader.readGroups(type, listener);
+			}
+		}
+		return sum[0];
+	}
+}
@@ -0,0 +1,176 @@
+package net.morbz.osmonaut.binary.pbf;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+import com.google.protobuf.CodedInputStream;
+
+import net.morbz.osmonaut.binary.pbf.proto.Fileformat.Blob;
+import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock;
+import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup;
+import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup.DenseNodes;
+import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup.Node;
+import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup.Relation;
+import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup.Way;
+import net.morbz.osmonaut.osm.EntityType;
+
+public class PrimitiveBlockReaderTest {
+	@Test
+	public void should_decode_like_generated_classes() throws Exception {
+		List<byte[]> blocks = readBlocks();
+		assertThat(blocks).isNotEmpty();
+
+		for (byte[] block : blocks) {
+			List<String> expected = decodeGenerated(block);
+			List<String> actual = new ArrayList<String>();
+			for (EntityType type : EntityType.values()) {
+				actual.addAll(decodeStreaming(block, type));
+			}
+			assertThat(actual).isNotEmpty().isEqualTo(expected);
+		}
+	}
+
+	@Test
+	public void should_decode_string_table() throws Exception {
+		for (byte[] block : readBlocks()) {
+			PrimitiveBlock generated = PrimitiveBlock.parseFrom(block);
+			PbfFieldDecoder fieldDecoder = new PrimitiveBlockReader(ByteBuffer.wrap(block)).getFieldDecoder();
+			for (int i = 0; i < generated.getStringtable().getSCount(); i++) {
+				assertThat(fieldDecoder.decodeString(i)).isEqualTo(generated.getStringtable().getS(i).toStringUtf8());
+			}
+		}
+	}
+
+	static List<byte[]> readBlocks() throws Exception {
+		return readBlocks(PrimitiveBlockReaderTest.class.getResource("/concorde-paris.osm.pbf").getPath());
+	}
+
+	static List<byte[]> readBlocks(String file) throws Exception {
+		PbfFile pbfFile = PbfFile.open(new File(file), false);
+		List<byte[]> blocks = new ArrayList<byte[]>();
+		try {
+			RawBlobReader reader = new RawBlobReader(pbfFile);
+			while (reader.hasNext()) {
+				PbfRawBlob rawBlob = reader.next();
+				if (!rawBlob.getType().equals("OSMData")) {
+					continue;
+				}
+
+				Blob blob = Blob.parseFrom(CodedInputStream.newInstance(rawBlob.getData()));
+				if (blob.hasRaw()) {
+					blocks.add(blob.getRaw().toByteArray());
+				} else {
+					Inflater inflater = new Inflater();
+					inflater.setInput(blob.getZlibData().toByteArray());
+					byte[] data = new byte[blob.getRawSize()];
+					inflater.inflate(data);
+					inflater.end();
+					blocks.add(data);
+				}
+			}
+		} finally {
+			pbfFile.close();
+		}
+		return blocks;
+	}
+
+	static List<String> decodeGenerated(byte[] data) throws Exception {
+		PrimitiveBlock block = PrimitiveBlock.parseFrom(data);
+		List<String> nodes = new ArrayList<String>();
+		List<String> ways = new ArrayList<String>();
+		List<String> relations = new ArrayList<String>();
+		for (PrimitiveGroup group : block.getPrimitivegroupList()) {
+			for (Node node : group.getNodesList()) {
+				nodes.add("N " + node.getId() + " " + node.getLat() + " " + node.getLon() + " " 
+						+ node.getKeysList() + node.getValsList());
+			}
+
+			DenseNodes dense = group.getDense();
+			long id = 0, lat = 0, lon = 0;
+			int keyValue = 0;
+			for (int i = 0; i < dense.getIdCount(); i++) {
+				id += dense.getId(i);
+				lat += dense.getLat(i);
+				lon += dense.getLon(i);
+				List<Integer> keys = new ArrayList<Integer>();
+				List<Integer> values = new ArrayList<Integer>();
+				while (keyValue < dense.getKeysValsCount()) {
+					int key = dense.getKeysVals(keyValue++);
+					if (key == 0) {
+						break;
+					}
+					keys.add(key);
+					values.add(dense.getKeysVals(keyValue++));
+				}
+				nodes.add("N " + id + " " + lat + " " + lon + " " + keys + values);
+			}
+
+			for (Way way : group.getWaysList()) {
+				List<Long> refs = new ArrayList<Long>();
+				long ref = 0;
+				for (long delta : way.getRefsList()) {
+					ref += delta;
+					refs.add(ref);
+				}
+				ways.add("W " + way.getId() + " " + way.getKeysList() + way.getValsList() + " " + refs);
+			}
+
+			for (Relation relation : group.getRelationsList()) {
+				List<Long> memberIds = new ArrayList<Long>();
+				List<Integer> types = new ArrayList<Integer>();
+				long memberId = 0;
+				for (int i = 0; i < relation.getMemidsCount(); i++) {
+					memberId += relation.getMemids(i);
+					memberIds.add(memberId);
+					types.add(relation.getTypes(i).getNumber());
+				}
+				relations.add("R " + relation.getId() + " " + relation.getKeysList() + relation.getValsList() + " " 
+						+ memberIds + types + relation.getRolesSidList());
+			}
+		}
+
+		List<String> entities = new ArrayList<String>();
+		entities.addAll(nodes);
+		entities.addAll(ways);
+		entities.addAll(relations);
+		return entities;
+	}
+
+	static List<String> decodeStreaming(byte[] data, EntityType type) throws Exception {
+		final List<String> entities = new ArrayList<String>();
+		PrimitiveBlockReader reader = new PrimitiveBlockReader(ByteBuffer.wrap(data));
+		reader.readGroups(type, new PrimitiveBlockListener() {
+			@Override
+			public void node(long id, long latitude, long longitude, int[] keys, int[] values, int tagCount) {
+				entities.add("N " + id + " " + latitude + " " + longitude + " " + list(keys, tagCount) 
+						+ list(values, tagCount));
+			}
+
+			@Override
+			public void way(long id, int[] keys, int[] values, int tagCount, long[] nodeIds) {
+				entities.add("W " + id + " " + list(keys, tagCount) + list(values, tagCount) + " " 
+						+ Arrays.toString(nodeIds));
+			}
+
+			@Override
+			public void relation(long id, int[] keys, int[] values, int tagCount, long[] memberIds,
+					byte[] memberTypes, int[] memberRoles) {
+				entities.add("R " + id + " " + list(keys, tagCount) + list(values, tagCount) + " " 
+						+ Arrays.toString(memberIds) + Arrays.toString(memberTypes) + Arrays.toString(memberRoles));
+			}
+		});
+		return entities;
+	}
+
+	private static String list(int[] array, int length) {
+		return Arrays.toString(Arrays.copyOf(array, length));
+	}
+}